@@ -0,0 +1,72 @@
+package ai.preferred.cerebro.benchmarks;
+
+import ai.preferred.cerebro.hnsw.HnswIndexWriter;
+import ai.preferred.cerebro.hnsw.Item;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to build an index from scratch with {@link HnswIndexWriter#addAll(java.util.Collection)},
+ * in the default mode where every thread fills its own leaf segment and in low
+ * memory mode where all threads fill one segment. Every invocation starts from a
+ * new empty writer, the index is not saved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AddAllBenchmark {
+    @Param({"20000"})
+    public int size;
+
+    @Param({"128"})
+    public int dimension;
+
+    @Param({"false", "true"})
+    public boolean lowMemoryMode;
+
+    private List<Item<float[]>> items;
+    private Path dir;
+    private HnswIndexWriter<float[]> writer;
+
+    @Setup
+    public void setup() {
+        items = SyntheticData.items(SyntheticData.vectors(size, dimension));
+    }
+
+    @Setup(Level.Invocation)
+    public void createWriter() throws Exception {
+        dir = Files.createTempDirectory("hnsw-addall-");
+        writer = new HnswIndexWriter<>(SyntheticData.configuration(size, lowMemoryMode), dir.toString());
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteWriter() {
+        writer = null;
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public HnswIndexWriter<float[]> addAll() throws InterruptedException {
+        writer.addAll(items);
+        return writer;
+    }
+}
@@ -0,0 +1,134 @@
+package ai.preferred.cerebro.benchmarks;
+
+import ai.preferred.cerebro.handler.DoubleCosineHandler;
+import ai.preferred.cerebro.handler.DoubleNormalizedCosineHandler;
+import ai.preferred.cerebro.handler.FloatCosineHandler;
+import ai.preferred.cerebro.handler.FloatInnerProductHandler;
+import ai.preferred.cerebro.handler.FloatL2Handler;
+import ai.preferred.cerebro.handler.FloatNormalizedCosineHandler;
+import ai.preferred.cerebro.handler.VecHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distance between a query and a stored vector for every {@link VecHandler},
+ * with the vector held as an array, in a slab as in heap-loaded segments, or
+ * in a little endian buffer as in memory-mapped segments.
+ * </br>
+ * The Java 17 kernels only use the Vector API when the module is added,
+ * run with -jvmArgsAppend --add-modules=jdk.incubator.vector to measure them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark {
+    //number of stored vectors cycled through, so that consecutive calls do not
+    //compare the same pair while the vectors still fit in the L2 cache
+    private static final int POOL_SIZE = 256;
+
+    @Param({"FloatCosine", "FloatNormalizedCosine", "FloatL2", "FloatInnerProduct",
+            "DoubleCosine", "DoubleNormalizedCosine"})
+    public String handler;
+
+    @Param({"32", "128", "960"})
+    public int dimension;
+
+    private VecHandler<Object> vecHandler;
+    private Object query;
+    private Object[] vectors;
+    private Object slab;
+    private ByteBuffer buffer;
+    private int bytesPerVector;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        float[][] data = SyntheticData.vectors(POOL_SIZE, dimension);
+        float[] queryData = SyntheticData.queries(1, dimension)[0];
+        boolean doubles = handler.startsWith("Double");
+        vecHandler = (VecHandler<Object>) handler(handler);
+        if (doubles) {
+            double[][] converted = new double[POOL_SIZE][];
+            for (int i = 0; i < POOL_SIZE; i++)
+                converted[i] = toDoubles(data[i]);
+            vectors = converted;
+            query = toDoubles(queryData);
+        } else {
+            vectors = data;
+            query = queryData;
+        }
+        //stored vectors go through prepare() as on insert, the query as on search
+        for (int i = 0; i < POOL_SIZE; i++)
+            vectors[i] = vecHandler.prepare(vectors[i]);
+        query = vecHandler.prepare(query);
+
+        slab = vecHandler.toSlab(vectors, dimension);
+        bytesPerVector = dimension * vecHandler.bytesPerElement();
+        buffer = ByteBuffer.allocateDirect(POOL_SIZE * bytesPerVector).order(ByteOrder.LITTLE_ENDIAN);
+        for (Object vector : vectors)
+            vecHandler.write(buffer, vector);
+    }
+
+    @Benchmark
+    public float distance() {
+        return vecHandler.distance(query, vectors[nextVector()]);
+    }
+
+    @Benchmark
+    public float distanceSlab() {
+        return vecHandler.distance(query, slab, nextVector() * dimension);
+    }
+
+    @Benchmark
+    public float distanceMapped() {
+        return vecHandler.distance(query, buffer, nextVector() * bytesPerVector);
+    }
+
+    private int nextVector() {
+        next = next + 1 == POOL_SIZE ? 0 : next + 1;
+        return next;
+    }
+
+    private static VecHandler<?> handler(String name) {
+        switch (name) {
+            case "FloatCosine":
+                return new FloatCosineHandler();
+            case "FloatNormalizedCosine":
+                return new FloatNormalizedCosineHandler();
+            case "FloatL2":
+                return new FloatL2Handler();
+            case "FloatInnerProduct":
+                return new FloatInnerProductHandler();
+            case "DoubleCosine":
+                return new DoubleCosineHandler();
+            case "DoubleNormalizedCosine":
+                return new DoubleNormalizedCosineHandler();
+            default:
+                throw new IllegalArgumentException("Unknown handler " + name);
+        }
+    }
+
+    private static double[] toDoubles(float[] vector) {
+        double[] converted = new double[vector.length];
+        for (int i = 0; i < vector.length; i++)
+            converted[i] = vector[i];
+        return converted;
+    }
+}
@@ -0,0 +1,58 @@
+package ai.preferred.cerebro.benchmarks;
+
+import ai.preferred.cerebro.hnsw.HnswIndexSearcher;
+import ai.preferred.cerebro.hnsw.HnswIndexWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to open a saved index, for searching and for modifying. The index
+ * files are read repeatedly so they are measured from the page cache,
+ * not from disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LoadBenchmark {
+    @Param({"100000"})
+    public int size;
+
+    @Param({"128"})
+    public int dimension;
+
+    @Param({"1", "4"})
+    public int segments;
+
+    private String dir;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = SyntheticData.index(size, dimension, segments);
+    }
+
+    @Benchmark
+    public HnswIndexSearcher<float[]> loadSearcher() {
+        HnswIndexSearcher<float[]> searcher = new HnswIndexSearcher<>(dir);
+        searcher.close();
+        return searcher;
+    }
+
+    @Benchmark
+    public HnswIndexWriter<float[]> loadWriter() {
+        return new HnswIndexWriter<>(dir);
+    }
+}
@@ -0,0 +1,309 @@
+package ai.preferred.cerebro.benchmarks;
+
+import ai.preferred.cerebro.handler.FloatCosineHandler;
+import ai.preferred.cerebro.handler.FloatInnerProductHandler;
+import ai.preferred.cerebro.handler.FloatL2Handler;
+import ai.preferred.cerebro.handler.FloatNormalizedCosineHandler;
+import ai.preferred.cerebro.handler.VecHandler;
+import ai.preferred.cerebro.hnsw.BatchTopHits;
+import ai.preferred.cerebro.hnsw.ConcurrentWriter;
+import ai.preferred.cerebro.hnsw.HnswConfiguration;
+import ai.preferred.cerebro.hnsw.HnswIndexSearcher;
+import ai.preferred.cerebro.hnsw.HnswIndexWriter;
+import ai.preferred.cerebro.hnsw.IndexUtils;
+import ai.preferred.cerebro.hnsw.Item;
+import ai.preferred.cerebro.hnsw.ProgressListener;
+import ai.preferred.cerebro.hnsw.SearchParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line tool measuring recall against speed over a sweep of index
+ * settings, on datasets in the .fvecs / .bvecs / .ivecs formats of SIFT and GloVe.
+ * </br>
+ * For every combination of m and efConstruction an index is built, or loaded
+ * if a previous run saved it, then the queries are searched one at a time with
+ * every ef, reporting recall@k, queries per second and the p50 / p99 latency.
+ * The ground truth is read from an .ivecs file, or computed by exact search and
+ * saved to that file if it does not exist yet. Unless given, the file is named
+ * after the dataset and the metric and kept with the indexes. The metric of a
+ * saved ground truth is recorded next to it and checked when it is read back.
+ * </br>
+ * Example, on SIFT1M:
+ * <pre>
+ * java -cp target/benchmarks.jar ai.preferred.cerebro.benchmarks.RecallEvaluation --base sift_base.fvecs --queries sift_query.fvecs
+ *      --groundtruth sift_groundtruth.ivecs --index /tmp/sift --metric l2 --k 10
+ *      --m 16,32 --ef-construction 100,200 --ef 10,20,40,80,160
+ * </pre>
+ */
+public class RecallEvaluation {
+    private static final String USAGE = "Usage: RecallEvaluation --base <.fvecs|.bvecs> --queries <.fvecs|.bvecs> --index <dir>\n"
+            + "    [--groundtruth <.ivecs>] [--metric l2|cosine|normalized-cosine|ip] [--k 10]\n"
+            + "    [--m 16] [--ef-construction 200] [--ef 10,20,40,80,160,320]\n"
+            + "    [--limit <base vectors>] [--query-limit <queries>] [--max-item-leaf <n>] [--low-memory]";
+
+    private final VecHandler<float[]> handler;
+    private final float[][] base;
+    private final float[][] queries;
+    private final int k;
+    private final boolean lowMemoryMode;
+    private final int maxItemLeaf;
+
+    RecallEvaluation(VecHandler<float[]> handler, float[][] base, float[][] queries, int k,
+                     boolean lowMemoryMode, int maxItemLeaf) {
+        this.handler = handler;
+        this.base = base;
+        this.queries = queries;
+        this.k = k;
+        this.lowMemoryMode = lowMemoryMode;
+        this.maxItemLeaf = maxItemLeaf;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = parseOptions(args);
+        if (options == null || !options.containsKey("base") || !options.containsKey("queries")
+                || !options.containsKey("index")) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        int limit = Integer.parseInt(options.getOrDefault("limit", String.valueOf(Integer.MAX_VALUE)));
+        int queryLimit = Integer.parseInt(options.getOrDefault("query-limit", String.valueOf(Integer.MAX_VALUE)));
+        float[][] base = readVectors(options.get("base"), limit);
+        float[][] queries = readVectors(options.get("queries"), queryLimit);
+        int k = Integer.parseInt(options.getOrDefault("k", "10"));
+        String metric = options.getOrDefault("metric", "l2");
+        int maxItemLeaf = Integer.parseInt(options.getOrDefault("max-item-leaf", String.valueOf(base.length)));
+        System.out.println("base " + base.length + " x " + base[0].length + ", queries " + queries.length
+                + ", metric " + metric + ", k " + k);
+
+        RecallEvaluation evaluation = new RecallEvaluation(handler(metric), base, queries, k,
+                options.containsKey("low-memory"), maxItemLeaf);
+        int[] ms = parseList(options.getOrDefault("m", "16"));
+        int[] efConstructions = parseList(options.getOrDefault("ef-construction", "200"));
+        int[] efs = parseList(options.getOrDefault("ef", "10,20,40,80,160,320"));
+
+        String dataset = new File(options.get("base")).getName().replaceFirst("\\.[bf]vecs$", "");
+        String prefix = options.get("index") + File.separator + dataset + "-" + base.length + "-" + metric;
+        String groundTruth = options.getOrDefault("groundtruth", prefix + "-q" + queries.length + "-groundtruth.ivecs");
+        BatchTopHits truth = null;
+        for (int m : ms) {
+            for (int efConstruction : efConstructions) {
+                String dir = prefix + "-m" + m + "-efc" + efConstruction + (evaluation.lowMemoryMode ? "-low" : "");
+                double buildSeconds = evaluation.buildIfAbsent(dir, m, efConstruction);
+                try (HnswIndexSearcher<float[]> searcher = new HnswIndexSearcher<>(dir)) {
+                    if (truth == null) {
+                        truth = evaluation.groundTruth(searcher, groundTruth, metric,
+                                options.containsKey("groundtruth") && limit != Integer.MAX_VALUE);
+                        System.out.printf("%4s %6s %9s %5s %9s %9s %9s %9s%n",
+                                "m", "efC", "build s", "ef", "recall@" + k, "qps", "p50 us", "p99 us");
+                    }
+                    for (int ef : efs) {
+                        Result result = evaluation.search(searcher, ef, truth);
+                        System.out.printf("%4d %6d %9s %5d %9.4f %9.1f %9.1f %9.1f%n", m, efConstruction,
+                                buildSeconds < 0 ? "loaded" : String.format("%.1f", buildSeconds), ef,
+                                result.recall, result.qps, result.p50Micros, result.p99Micros);
+                    }
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Build an index of the base vectors in a directory unless one was saved there
+     * by a previous run, the external id of a vector being its position in the file.
+     * As in {@link SyntheticData#index(int, int, int)} the index is built aside and
+     * renamed once saved, so that an interrupted build is never reused.
+     * @return the seconds taken to insert and save the vectors, -1 if the index was loaded
+     */
+    double buildIfAbsent(String dir, int m, int efConstruction) throws IOException, InterruptedException {
+        Path target = Paths.get(dir);
+        if (Files.isDirectory(target))
+            return -1;
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        Path building = Files.createTempDirectory(target.toAbsolutePath().getParent(), "building-");
+        HnswConfiguration configuration = new HnswConfiguration(handler, maxItemLeaf);
+        configuration.setM(m);
+        configuration.setEfConstruction(efConstruction);
+        configuration.setLowMemoryMode(lowMemoryMode);
+        List<Item<float[]>> items = new ArrayList<>(base.length);
+        for (int i = 0; i < base.length; i++)
+            items.add(new Item<>(i, base[i]));
+
+        //progress every tenth of the items rather than every thousand
+        AtomicInteger reported = new AtomicInteger();
+        ProgressListener listener = (workDone, max) -> {
+            int tenth = (int) (10L * workDone / max);
+            if (reported.getAndAccumulate(tenth, Math::max) < tenth)
+                System.out.println("building m=" + m + " efConstruction=" + efConstruction + ": " + workDone + "/" + max);
+        };
+        long start = System.nanoTime();
+        try {
+            HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration, building.toString());
+            //the writer grows one leaf per core outside of low memory mode
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (lowMemoryMode)
+                writer.singleSegmentAddAll(items, threads, listener, ConcurrentWriter.DEFAULT_PROGRESS_UPDATE_INTERVAL);
+            else
+                writer.addAll(items, threads, listener, ConcurrentWriter.DEFAULT_PROGRESS_UPDATE_INTERVAL);
+            writer.save();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            SyntheticData.delete(building);
+            throw e;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Files.move(building, target, StandardCopyOption.ATOMIC_MOVE);
+        return seconds;
+    }
+
+    /**
+     * Read the k nearest neighbors of every query from an .ivecs file, or find
+     * them by exact search and save them to it if it does not exist. The metric
+     * of a saved ground truth is written to a .metric file next to it.
+     * @param file the ground truth file
+     * @param metric the metric the index was built with
+     * @param partialBase whether only part of the base file was read, which a
+     *                    ground truth file given with the dataset does not match
+     * @throws IllegalArgumentException if the file was saved for another metric
+     */
+    BatchTopHits groundTruth(HnswIndexSearcher<float[]> searcher, String file, String metric,
+                             boolean partialBase) throws IOException {
+        Path metricFile = Paths.get(file + ".metric");
+        if (IndexUtils.checkFileExist(new File(file))) {
+            if (Files.exists(metricFile)) {
+                String saved = new String(Files.readAllBytes(metricFile), StandardCharsets.UTF_8).trim();
+                if (!saved.equals(metric))
+                    throw new IllegalArgumentException("Ground truth " + file + " was computed with metric "
+                            + saved + ", not " + metric);
+            } else {
+                System.out.println("warning: metric of ground truth " + file + " not recorded, assuming " + metric);
+            }
+            if (partialBase)
+                System.out.println("warning: ground truth read from " + file + " while only part of the base was loaded");
+            int[][] neighbors = IndexUtils.readIvecs(file, queries.length);
+            if (neighbors.length < queries.length)
+                throw new IllegalArgumentException("Ground truth holds fewer queries than the query file");
+            BatchTopHits truth = new BatchTopHits(queries.length, k);
+            for (int q = 0; q < queries.length; q++) {
+                if (neighbors[q].length < k)
+                    throw new IllegalArgumentException("Ground truth holds fewer than k neighbors per query");
+                truth.set(q, neighbors[q], null, k);
+            }
+            return truth;
+        }
+
+        long start = System.nanoTime();
+        BatchTopHits truth = searcher.searchBatchExact(queries, k);
+        System.out.printf("ground truth computed in %.1f s%n", (System.nanoTime() - start) / 1e9);
+        int[][] neighbors = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++) {
+            neighbors[q] = new int[truth.count(q)];
+            for (int rank = 0; rank < neighbors[q].length; rank++)
+                neighbors[q][rank] = truth.id(q, rank);
+        }
+        IndexUtils.writeIvecs(neighbors, file);
+        Files.write(metricFile, metric.getBytes(StandardCharsets.UTF_8));
+        return truth;
+    }
+
+    /**
+     * Search every query one after the other with a list size, after one
+     * untimed pass over all queries to warm up the JIT and the page cache.
+     */
+    Result search(HnswIndexSearcher<float[]> searcher, int ef, BatchTopHits truth) {
+        SearchParams params = new SearchParams(k);
+        params.setEf(ef);
+        int[] ids = new int[k];
+        float[] scores = new float[k];
+        for (float[] query : queries)
+            searcher.search(query, params, ids, scores);
+
+        BatchTopHits hits = new BatchTopHits(queries.length, k);
+        long[] latencies = new long[queries.length];
+        long start = System.nanoTime();
+        for (int q = 0; q < queries.length; q++) {
+            long queryStart = System.nanoTime();
+            int count = searcher.search(queries[q], params, ids, scores);
+            latencies[q] = System.nanoTime() - queryStart;
+            hits.set(q, ids, scores, count);
+        }
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        return new Result(hits.recall(truth), queries.length / (elapsed / 1e9),
+                percentile(latencies, 0.50) / 1e3, percentile(latencies, 0.99) / 1e3);
+    }
+
+    static final class Result {
+        final double recall;
+        final double qps;
+        final double p50Micros;
+        final double p99Micros;
+
+        Result(double recall, double qps, double p50Micros, double p99Micros) {
+            this.recall = recall;
+            this.qps = qps;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+        }
+    }
+
+    //nearest rank percentile of sorted values
+    private static long percentile(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    private static float[][] readVectors(String file, int limit) throws IOException {
+        if (file.endsWith(".fvecs"))
+            return IndexUtils.readFvecs(file, limit);
+        if (file.endsWith(".bvecs"))
+            return IndexUtils.readBvecs(file, limit);
+        throw new IllegalArgumentException("Expected a .fvecs or .bvecs file: " + file);
+    }
+
+    private static VecHandler<float[]> handler(String metric) {
+        switch (metric) {
+            case "l2":
+                return new FloatL2Handler();
+            case "cosine":
+                return new FloatCosineHandler();
+            case "normalized-cosine":
+                return new FloatNormalizedCosineHandler();
+            case "ip":
+                return new FloatInnerProductHandler();
+            default:
+                throw new IllegalArgumentException("Unknown metric " + metric);
+        }
+    }
+
+    //--name value pairs, or --name alone for flags, null if malformed
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--"))
+                return null;
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--"))
+                options.put(name, args[++i]);
+            else
+                options.put(name, "");
+        }
+        return options;
+    }
+
+    private static int[] parseList(String values) {
+        return Arrays.stream(values.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+}
@@ -0,0 +1,89 @@
+package ai.preferred.cerebro.benchmarks;
+
+import ai.preferred.cerebro.hnsw.HnswIndexSearcher;
+import ai.preferred.cerebro.hnsw.SearchParams;
+import org.apache.lucene.search.TopDocs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of one query through {@link HnswIndexSearcher}, across list sizes,
+ * numbers of results and numbers of segments. Queries are cycled through a
+ * fixed set so that successive searches take different paths in the graphs.
+ * </br>
+ * Indexes are built by {@link SyntheticData#index(int, int, int)} on first use.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+    private static final int QUERY_COUNT = 1000;
+
+    @Param({"100000"})
+    public int size;
+
+    @Param({"128"})
+    public int dimension;
+
+    @Param({"1", "4", "16"})
+    public int segments;
+
+    @Param({"10", "50", "200"})
+    public int ef;
+
+    @Param({"1", "10", "100"})
+    public int k;
+
+    private HnswIndexSearcher<float[]> searcher;
+    private SearchParams params;
+    private float[][] queries;
+    private int[] ids;
+    private float[] scores;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        searcher = new HnswIndexSearcher<>(SyntheticData.index(size, dimension, segments));
+        queries = SyntheticData.queries(QUERY_COUNT, dimension);
+        params = new SearchParams(k);
+        params.setEf(ef);
+        ids = new int[k];
+        scores = new float[k];
+    }
+
+    @TearDown
+    public void tearDown() {
+        searcher.close();
+    }
+
+    @Benchmark
+    public TopDocs search() {
+        return searcher.search(nextQuery(), params);
+    }
+
+    //same search writing its results into reused arrays
+    @Benchmark
+    public int searchIntoArrays() {
+        return searcher.search(nextQuery(), params, ids, scores);
+    }
+
+    private float[] nextQuery() {
+        next = next + 1 == QUERY_COUNT ? 0 : next + 1;
+        return queries[next];
+    }
+}
@@ -0,0 +1,136 @@
+package ai.preferred.cerebro.benchmarks;
+
+import ai.preferred.cerebro.handler.FloatCosineHandler;
+import ai.preferred.cerebro.hnsw.ConcurrentWriter;
+import ai.preferred.cerebro.hnsw.HnswConfiguration;
+import ai.preferred.cerebro.hnsw.HnswIndexWriter;
+import ai.preferred.cerebro.hnsw.Item;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Vectors and indexes the benchmarks run on, generated in-process from
+ * fixed seeds so that every fork and every run sees the same data.
+ * </br>
+ * Indexes are built once and kept under the temporary directory, so that
+ * the forks of a run and later runs skip building them again. Delete
+ * {@link #INDEX_ROOT} to rebuild them, for example after a change to
+ * the graph construction.
+ */
+public final class SyntheticData {
+    public static final Path INDEX_ROOT = Paths.get(System.getProperty("java.io.tmpdir"), "hnsw-benchmarks");
+    public static final int M = 16;
+    public static final int EF_CONSTRUCTION = 100;
+    private static final long DATA_SEED = 42;
+    private static final long QUERY_SEED = 7;
+
+    private SyntheticData() {
+    }
+
+    /**
+     * @return the vectors indexed by the benchmarks, elements drawn from a normal distribution
+     */
+    public static float[][] vectors(int count, int dimension) {
+        return gaussian(count, dimension, DATA_SEED);
+    }
+
+    /**
+     * @return query vectors drawn from the same distribution as {@link #vectors(int, int)}
+     */
+    public static float[][] queries(int count, int dimension) {
+        return gaussian(count, dimension, QUERY_SEED);
+    }
+
+    /**
+     * @return the vectors as items, the external id of a vector being its position
+     */
+    public static List<Item<float[]>> items(float[][] vectors) {
+        List<Item<float[]>> items = new ArrayList<>(vectors.length);
+        for (int i = 0; i < vectors.length; i++)
+            items.add(new Item<>(i, vectors[i]));
+        return items;
+    }
+
+    /**
+     * Configuration of the indexes of the benchmarks, over cosine distance.
+     * @param maxItemLeaf capacity of each leaf segment
+     * @param lowMemoryMode whether leaves are filled one after the other by all threads
+     */
+    public static HnswConfiguration configuration(int maxItemLeaf, boolean lowMemoryMode) {
+        HnswConfiguration configuration = new HnswConfiguration(new FloatCosineHandler(), maxItemLeaf);
+        configuration.setM(M);
+        configuration.setEfConstruction(EF_CONSTRUCTION);
+        configuration.setLowMemoryMode(lowMemoryMode);
+        return configuration;
+    }
+
+    /**
+     * Directory of a saved index of {@link #vectors(int, int)}, built on first use.
+     * The index is built in low memory mode with leaves of size / segments items,
+     * a new leaf being grown whenever the current one is full.
+     * @param size number of vectors
+     * @param dimension number of elements of each vector
+     * @param segments number of leaf segments
+     * @return the directory holding the index
+     */
+    public static String index(int size, int dimension, int segments) throws IOException, InterruptedException {
+        Path dir = INDEX_ROOT.resolve("index-" + size + "-" + dimension + "-" + segments);
+        if (Files.isDirectory(dir))
+            return dir.toString();
+        Files.createDirectories(INDEX_ROOT);
+        //built aside then renamed, so that an interrupted build is never reused
+        Path building = Files.createTempDirectory(INDEX_ROOT, "building-");
+        int maxItemLeaf = (size + segments - 1) / segments;
+        try {
+            HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration(maxItemLeaf, true), building.toString());
+            //unlike addAll(), grows as many leaves as needed whatever the number of cores
+            writer.singleSegmentAddAll(items(vectors(size, dimension)), Runtime.getRuntime().availableProcessors(),
+                    (workDone, max) -> { }, ConcurrentWriter.DEFAULT_PROGRESS_UPDATE_INTERVAL);
+            writer.save();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            delete(building);
+            throw e;
+        }
+        try {
+            Files.move(building, dir, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            //another fork built it meanwhile
+            delete(building);
+        }
+        return dir.toString();
+    }
+
+    /**
+     * Delete a directory and everything in it.
+     */
+    public static void delete(Path dir) {
+        if (!Files.exists(dir))
+            return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static float[][] gaussian(int count, int dimension, long seed) {
+        Random random = new Random(seed);
+        float[][] vectors = new float[count][dimension];
+        for (float[] vector : vectors) {
+            for (int i = 0; i < dimension; i++)
+                vector[i] = (float) random.nextGaussian();
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,70 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.benchmarks.SyntheticData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link LeafSegment#searchLayer(Node, Object, int, int)} over the base layer of
+ * a segment being written, the search every insert runs with efConstruction.
+ * Lives in the library's package to reach the segment, which is not public.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchLayerBenchmark {
+    private static final int QUERY_COUNT = 1000;
+
+    @Param({"20000"})
+    public int size;
+
+    @Param({"128"})
+    public int dimension;
+
+    @Param({"10", "100", "200"})
+    public int ef;
+
+    private Path dir;
+    private LeafSegment<float[]> leaf;
+    private float[][] queries;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("hnsw-searchlayer-");
+        HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(SyntheticData.configuration(size, false), dir.toString());
+        //a single thread fills the first leaf only, the others stay empty
+        writer.addAll(SyntheticData.items(SyntheticData.vectors(size, dimension)), 1,
+                (workDone, max) -> { }, ConcurrentWriter.DEFAULT_PROGRESS_UPDATE_INTERVAL);
+        leaf = writer.leaves[0];
+        queries = SyntheticData.queries(QUERY_COUNT, dimension);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticData.delete(dir);
+    }
+
+    @Benchmark
+    public BoundedMaxHeap searchLayer() {
+        next = next + 1 == QUERY_COUNT ? 0 : next + 1;
+        return leaf.searchLayer(leaf.entryPoint, queries[next], ef, 0);
+    }
+}
@@ -0,0 +1,93 @@
+package ai.preferred.cerebro.handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Distance kernels shared by the handlers, the second vector of each
+ * starting at an offset so that it can be read out of a slab, or out of
+ * a buffer of mapped vectors in which case the offset is in bytes.
+ * </br>
+ * This version runs the plain loops of {@link ScalarDistances}. The jar
+ * also holds a Java 17 version of this class (src/main/java17) running
+ * them on the incubating Vector API when the JVM was started with
+ * --add-modules jdk.incubator.vector, and the plain loops otherwise.
+ */
+final class DistanceKernels {
+    //elements between two checks of a bounded distance against its threshold
+    static final int BOUND_CHECK_INTERVAL = 32;
+
+    private DistanceKernels() {
+    }
+
+    /**
+     * @return whether the kernels run on the Vector API
+     */
+    static boolean isVectorized() {
+        return false;
+    }
+
+    static float cosineDistance(float[] a, float[] b, int offset, int length) {
+        return ScalarDistances.cosineDistance(a, b, offset, length);
+    }
+
+    static float dot(float[] a, float[] b, int offset, int length) {
+        return ScalarDistances.dot(a, b, offset, length);
+    }
+
+    static float squaredDistance(float[] a, float[] b, int offset, int length) {
+        return ScalarDistances.squaredDistance(a, b, offset, length);
+    }
+
+    /**
+     * Same as {@link #squaredDistance(float[], float[], int, int)} but stops
+     * once the partial sum exceeds the threshold, returning it. The result is
+     * exact whenever it is not above the threshold.
+     */
+    static float squaredDistanceBounded(float[] a, float[] b, int offset, int length, float threshold) {
+        return ScalarDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+    }
+
+    static float cosineDistance(float[] a, ByteBuffer b, int offset, int length) {
+        return ScalarDistances.cosineDistance(a, b, offset, length);
+    }
+
+    static float dot(float[] a, ByteBuffer b, int offset, int length) {
+        return ScalarDistances.dot(a, b, offset, length);
+    }
+
+    static float squaredDistance(float[] a, ByteBuffer b, int offset, int length) {
+        return ScalarDistances.squaredDistance(a, b, offset, length);
+    }
+
+    static float squaredDistanceBounded(float[] a, ByteBuffer b, int offset, int length, float threshold) {
+        return ScalarDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+    }
+
+    static double cosineDistance(double[] a, double[] b, int offset, int length) {
+        return ScalarDistances.cosineDistance(a, b, offset, length);
+    }
+
+    static double dot(double[] a, double[] b, int offset, int length) {
+        return ScalarDistances.dot(a, b, offset, length);
+    }
+
+    static double squaredDistance(double[] a, double[] b, int offset, int length) {
+        return ScalarDistances.squaredDistance(a, b, offset, length);
+    }
+
+    static double cosineDistance(double[] a, ByteBuffer b, int offset, int length) {
+        return ScalarDistances.cosineDistance(a, b, offset, length);
+    }
+
+    static double dot(double[] a, ByteBuffer b, int offset, int length) {
+        return ScalarDistances.dot(a, b, offset, length);
+    }
+
+    static double squaredDistanceBounded(double[] a, double[] b, int offset, int length, double threshold) {
+        return ScalarDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+    }
+
+    static double squaredDistanceBounded(double[] a, ByteBuffer b, int offset, int length, double threshold) {
+        return ScalarDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+    }
+}
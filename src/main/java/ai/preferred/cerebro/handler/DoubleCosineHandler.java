@@ -1,4 +1,7 @@
 package ai.preferred.cerebro.handler;
+
+import java.nio.ByteBuffer;
+
 /**
  * Child class of {@link VecDoubleHandler} with detailed implementation of
  * the distance function using cosine metric
@@ -7,19 +10,24 @@ package ai.preferred.cerebro.handler;
  *
  * @author hpminh@apcs.vn
  */
-public final class DoubleCosineHandler extends VecDoubleHandler {
+public final class DoubleCosineHandler extends VecDoubleHandler implements QuantizableHandler<double[]> {
+    @Override
+    public float distance(double[] a, double[] b) {
+        return (float) DistanceKernels.cosineDistance(a, b, 0, a.length);
+    }
+
     @Override
-    public double distance(double[] a, double[] b) {
-        double dot = 0.0f;
-        double nru = 0.0f;
-        double nrv = 0.0f;
-        for (int i = 0; i < a.length; i++) {
-            dot += a[i] * b[i];
-            nru += a[i] * a[i];
-            nrv += b[i] * b[i];
-        }
+    public float distance(double[] a, double[] slab, int offset) {
+        return (float) DistanceKernels.cosineDistance(a, slab, offset, a.length);
+    }
 
-        double similarity = dot / (Math.sqrt(nru) * Math.sqrt(nrv));
-        return 1 - similarity;
+    @Override
+    public float distance(double[] a, ByteBuffer data, int offset) {
+        return (float) DistanceKernels.cosineDistance(a, data, offset, a.length);
+    }
+
+    @Override
+    public float distance(double dot, double squaredNormA, double squaredNormB) {
+        return (float) (1 - dot / Math.sqrt(squaredNormA * squaredNormB));
     }
 }
@@ -0,0 +1,69 @@
+package ai.preferred.cerebro.handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Child class of {@link VecDoubleHandler} using the cosine metric like
+ * {@link DoubleCosineHandler}, but vectors are scaled to unit norm once when
+ * inserted and queries once per search, so that the distance is one minus
+ * their dot product and the norms are never computed again.
+ * </br>
+ * Vectors are stored normalized, an index built with {@link DoubleCosineHandler}
+ * must be rebuilt to switch to this handler.
+ *
+ * @author hpminh@apcs.vn
+ */
+public final class DoubleNormalizedCosineHandler extends VecDoubleHandler implements QuantizableHandler<double[]> {
+    @Override
+    public double[] prepare(double[] vec) {
+        double[] unit = new double[vec.length];
+        double norm = Math.sqrt(DistanceKernels.dot(vec, vec, 0, vec.length));
+        //a zero vector stays zero, cosine is undefined for it
+        if (norm > 0) {
+            for (int i = 0; i < vec.length; i++)
+                unit[i] = vec[i] / norm;
+        }
+        return unit;
+    }
+
+    @Override
+    public float distance(double[] a, double[] b) {
+        return (float) (1 - DistanceKernels.dot(a, b, 0, a.length));
+    }
+
+    @Override
+    public float distance(double[] a, double[] slab, int offset) {
+        return (float) (1 - DistanceKernels.dot(a, slab, offset, a.length));
+    }
+
+    //half the squared euclidean distance bounds the distance from below, see
+    //FloatNormalizedCosineHandler
+    @Override
+    public float distanceBounded(double[] a, double[] b, float threshold) {
+        float bound = (float) (0.5 * DistanceKernels.squaredDistanceBounded(a, b, 0, a.length, 2.0 * threshold));
+        return bound > threshold ? bound : distance(a, b);
+    }
+
+    @Override
+    public float distanceBounded(double[] a, double[] slab, int offset, float threshold) {
+        float bound = (float) (0.5 * DistanceKernels.squaredDistanceBounded(a, slab, offset, a.length, 2.0 * threshold));
+        return bound > threshold ? bound : distance(a, slab, offset);
+    }
+
+    @Override
+    public float distanceBounded(double[] a, ByteBuffer data, int offset, float threshold) {
+        float bound = (float) (0.5 * DistanceKernels.squaredDistanceBounded(a, data, offset, a.length, 2.0 * threshold));
+        return bound > threshold ? bound : distance(a, data, offset);
+    }
+
+    @Override
+    public float distance(double[] a, ByteBuffer data, int offset) {
+        return (float) (1 - DistanceKernels.dot(a, data, offset, a.length));
+    }
+
+    //quantized vectors are no longer of unit norm once decoded
+    @Override
+    public float distance(double dot, double squaredNormA, double squaredNormB) {
+        return (float) (1 - dot / Math.sqrt(squaredNormA * squaredNormB));
+    }
+}
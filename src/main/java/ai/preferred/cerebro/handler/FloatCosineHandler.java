@@ -1,5 +1,7 @@
 package ai.preferred.cerebro.handler;
 
+import java.nio.ByteBuffer;
+
 /**
  * Child class of {@link VecFloatHandler} with detailed implementation of
  * the distance function using cosine metric
@@ -8,19 +10,24 @@ package ai.preferred.cerebro.handler;
  *
  * @author hpminh@apcs.vn
  */
-public final class FloatCosineHandler extends VecFloatHandler {
+public final class FloatCosineHandler extends VecFloatHandler implements QuantizableHandler<float[]> {
     @Override
-    public double distance(float[] a, float[] b) {
-        float dot = 0.0f;
-        float nru = 0.0f;
-        float nrv = 0.0f;
-        for (int i = 0; i < a.length; i++) {
-            dot += a[i] * b[i];
-            nru += a[i] * a[i];
-            nrv += b[i] * b[i];
-        }
+    public float distance(float[] a, float[] b) {
+        return DistanceKernels.cosineDistance(a, b, 0, a.length);
+    }
+
+    @Override
+    public float distance(float[] a, float[] slab, int offset) {
+        return DistanceKernels.cosineDistance(a, slab, offset, a.length);
+    }
 
-        float similarity = dot / (float)(Math.sqrt(nru) * Math.sqrt(nrv));
-        return 1 - similarity;
+    @Override
+    public float distance(float[] a, ByteBuffer data, int offset) {
+        return DistanceKernels.cosineDistance(a, data, offset, a.length);
+    }
+
+    @Override
+    public float distance(double dot, double squaredNormA, double squaredNormB) {
+        return (float) (1 - dot / Math.sqrt(squaredNormA * squaredNormB));
     }
 }
@@ -0,0 +1,40 @@
+package ai.preferred.cerebro.handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Child class of {@link VecFloatHandler} for maximum inner product search:
+ * the distance between two vectors is their negated dot product, so the
+ * nearest vectors are the ones with the largest dot product. Unlike cosine,
+ * the norm of the stored vectors matters, as with models trained for it.
+ * </br>
+ * Scores are the dot products themselves, they may be negative.
+ *
+ * @author hpminh@apcs.vn
+ */
+public final class FloatInnerProductHandler extends VecFloatHandler implements QuantizableHandler<float[]> {
+    @Override
+    public float distance(float[] a, float[] b) {
+        return -DistanceKernels.dot(a, b, 0, a.length);
+    }
+
+    @Override
+    public float distance(float[] a, float[] slab, int offset) {
+        return -DistanceKernels.dot(a, slab, offset, a.length);
+    }
+
+    @Override
+    public float distance(float[] a, ByteBuffer data, int offset) {
+        return -DistanceKernels.dot(a, data, offset, a.length);
+    }
+
+    @Override
+    public float distance(double dot, double squaredNormA, double squaredNormB) {
+        return (float) -dot;
+    }
+
+    @Override
+    public float score(float distance) {
+        return -distance;
+    }
+}
@@ -0,0 +1,56 @@
+package ai.preferred.cerebro.handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Child class of {@link VecFloatHandler} with detailed implementation of
+ * the distance function using the squared euclidean (L2) metric, which
+ * ranks vectors like the euclidean distance without its square root.
+ * </br>
+ * Scores are 1 / (1 + squared distance), so that higher is better and
+ * an exact match scores 1.
+ *
+ * @author hpminh@apcs.vn
+ */
+public final class FloatL2Handler extends VecFloatHandler implements QuantizableHandler<float[]> {
+    @Override
+    public float distance(float[] a, float[] b) {
+        return DistanceKernels.squaredDistance(a, b, 0, a.length);
+    }
+
+    @Override
+    public float distance(float[] a, float[] slab, int offset) {
+        return DistanceKernels.squaredDistance(a, slab, offset, a.length);
+    }
+
+    @Override
+    public float distanceBounded(float[] a, float[] b, float threshold) {
+        return DistanceKernels.squaredDistanceBounded(a, b, 0, a.length, threshold);
+    }
+
+    @Override
+    public float distanceBounded(float[] a, float[] slab, int offset, float threshold) {
+        return DistanceKernels.squaredDistanceBounded(a, slab, offset, a.length, threshold);
+    }
+
+    @Override
+    public float distance(float[] a, ByteBuffer data, int offset) {
+        return DistanceKernels.squaredDistance(a, data, offset, a.length);
+    }
+
+    @Override
+    public float distanceBounded(float[] a, ByteBuffer data, int offset, float threshold) {
+        return DistanceKernels.squaredDistanceBounded(a, data, offset, a.length, threshold);
+    }
+
+    //rounding of the expansion may make it slightly negative for close vectors
+    @Override
+    public float distance(double dot, double squaredNormA, double squaredNormB) {
+        return (float) Math.max(0, squaredNormA + squaredNormB - 2 * dot);
+    }
+
+    @Override
+    public float score(float distance) {
+        return 1 / (1 + distance);
+    }
+}
@@ -0,0 +1,72 @@
+package ai.preferred.cerebro.handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Child class of {@link VecFloatHandler} using the cosine metric like
+ * {@link FloatCosineHandler}, but vectors are scaled to unit norm once when
+ * inserted and queries once per search, so that the distance is one minus
+ * their dot product and the norms are never computed again.
+ * </br>
+ * Vectors are stored normalized, an index built with {@link FloatCosineHandler}
+ * must be rebuilt to switch to this handler.
+ *
+ * @author hpminh@apcs.vn
+ */
+public final class FloatNormalizedCosineHandler extends VecFloatHandler implements QuantizableHandler<float[]> {
+    @Override
+    public float[] prepare(float[] vec) {
+        float[] unit = new float[vec.length];
+        double norm = Math.sqrt(DistanceKernels.dot(vec, vec, 0, vec.length));
+        //a zero vector stays zero, cosine is undefined for it
+        if (norm > 0) {
+            for (int i = 0; i < vec.length; i++)
+                unit[i] = (float) (vec[i] / norm);
+        }
+        return unit;
+    }
+
+    @Override
+    public float distance(float[] a, float[] b) {
+        return 1 - DistanceKernels.dot(a, b, 0, a.length);
+    }
+
+    @Override
+    public float distance(float[] a, float[] slab, int offset) {
+        return 1 - DistanceKernels.dot(a, slab, offset, a.length);
+    }
+
+    //1 - dot = 1 - (|a|^2 + |b|^2) / 2 + |a - b|^2 / 2, so for vectors of at most
+    //unit norm, as prepare() makes them, half the squared euclidean distance is
+    //a lower bound of the distance and its partial sums can be compared to the
+    //threshold. Once under it the distance itself is returned, which differs
+    //from the bound for zero vectors
+    @Override
+    public float distanceBounded(float[] a, float[] b, float threshold) {
+        float bound = 0.5f * DistanceKernels.squaredDistanceBounded(a, b, 0, a.length, 2 * threshold);
+        return bound > threshold ? bound : distance(a, b);
+    }
+
+    @Override
+    public float distanceBounded(float[] a, float[] slab, int offset, float threshold) {
+        float bound = 0.5f * DistanceKernels.squaredDistanceBounded(a, slab, offset, a.length, 2 * threshold);
+        return bound > threshold ? bound : distance(a, slab, offset);
+    }
+
+    @Override
+    public float distanceBounded(float[] a, ByteBuffer data, int offset, float threshold) {
+        float bound = 0.5f * DistanceKernels.squaredDistanceBounded(a, data, offset, a.length, 2 * threshold);
+        return bound > threshold ? bound : distance(a, data, offset);
+    }
+
+    @Override
+    public float distance(float[] a, ByteBuffer data, int offset) {
+        return 1 - DistanceKernels.dot(a, data, offset, a.length);
+    }
+
+    //quantized vectors are no longer of unit norm once decoded
+    @Override
+    public float distance(double dot, double squaredNormA, double squaredNormB) {
+        return (float) (1 - dot / Math.sqrt(squaredNormA * squaredNormB));
+    }
+}
@@ -0,0 +1,20 @@
+package ai.preferred.cerebro.handler;
+
+/**
+ * Handler whose metric can be derived from the dot product and squared
+ * norms of two vectors, which is what lets queries be compared to the
+ * quantized copy of the vectors of a segment. Indexes can only be saved
+ * with scalar or product quantization for handlers implementing it.
+ * @param <TVector>
+ */
+public interface QuantizableHandler<TVector> extends VecHandler<TVector> {
+    /**
+     * Distance between two vectors knowing only their dot product and squared
+     * norms, used to compare a query to quantized vectors.
+     * @param dot dot product of the two vectors
+     * @param squaredNormA squared norm of the first vector
+     * @param squaredNormB squared norm of the second vector
+     * @return distance between two vectors
+     */
+    float distance(double dot, double squaredNormA, double squaredNormB);
+}
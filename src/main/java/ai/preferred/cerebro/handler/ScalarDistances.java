@@ -0,0 +1,189 @@
+package ai.preferred.cerebro.handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plain loop implementations of the distance kernels, see {@link DistanceKernels}.
+ * The second vector starts at an offset so that it can be read out of a slab,
+ * or out of a buffer in which case the offset is in bytes.
+ */
+final class ScalarDistances {
+    private ScalarDistances() {
+    }
+
+    static float cosineDistance(float[] a, float[] b, int offset, int length) {
+        float dot = 0.0f;
+        float nru = 0.0f;
+        float nrv = 0.0f;
+        for (int i = 0; i < length; i++) {
+            float v = b[offset + i];
+            dot += a[i] * v;
+            nru += a[i] * a[i];
+            nrv += v * v;
+        }
+        float similarity = dot / (float)(Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+
+    static float dot(float[] a, float[] b, int offset, int length) {
+        float dot = 0.0f;
+        for (int i = 0; i < length; i++) {
+            dot += a[i] * b[offset + i];
+        }
+        return dot;
+    }
+
+    static float squaredDistance(float[] a, float[] b, int offset, int length) {
+        float sum = 0.0f;
+        for (int i = 0; i < length; i++) {
+            float diff = a[i] - b[offset + i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    //the partial sum is compared to the threshold once per block of elements
+    static float squaredDistanceBounded(float[] a, float[] b, int offset, int length, float threshold) {
+        float sum = 0.0f;
+        int i = 0;
+        while (i < length) {
+            int blockEnd = Math.min(length, i + DistanceKernels.BOUND_CHECK_INTERVAL);
+            for (; i < blockEnd; i++) {
+                float diff = a[i] - b[offset + i];
+                sum += diff * diff;
+            }
+            if (sum > threshold)
+                return sum;
+        }
+        return sum;
+    }
+
+    static float cosineDistance(float[] a, ByteBuffer b, int offset, int length) {
+        float dot = 0.0f;
+        float nru = 0.0f;
+        float nrv = 0.0f;
+        for (int i = 0; i < length; i++) {
+            float v = b.getFloat(offset + i * Float.BYTES);
+            dot += a[i] * v;
+            nru += a[i] * a[i];
+            nrv += v * v;
+        }
+        float similarity = dot / (float)(Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+
+    static float dot(float[] a, ByteBuffer b, int offset, int length) {
+        float dot = 0.0f;
+        for (int i = 0; i < length; i++) {
+            dot += a[i] * b.getFloat(offset + i * Float.BYTES);
+        }
+        return dot;
+    }
+
+    static float squaredDistance(float[] a, ByteBuffer b, int offset, int length) {
+        float sum = 0.0f;
+        for (int i = 0; i < length; i++) {
+            float diff = a[i] - b.getFloat(offset + i * Float.BYTES);
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    static float squaredDistanceBounded(float[] a, ByteBuffer b, int offset, int length, float threshold) {
+        float sum = 0.0f;
+        int i = 0;
+        while (i < length) {
+            int blockEnd = Math.min(length, i + DistanceKernels.BOUND_CHECK_INTERVAL);
+            for (; i < blockEnd; i++) {
+                float diff = a[i] - b.getFloat(offset + i * Float.BYTES);
+                sum += diff * diff;
+            }
+            if (sum > threshold)
+                return sum;
+        }
+        return sum;
+    }
+
+    static double cosineDistance(double[] a, double[] b, int offset, int length) {
+        double dot = 0.0;
+        double nru = 0.0;
+        double nrv = 0.0;
+        for (int i = 0; i < length; i++) {
+            double v = b[offset + i];
+            dot += a[i] * v;
+            nru += a[i] * a[i];
+            nrv += v * v;
+        }
+        double similarity = dot / (Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+
+    static double dot(double[] a, double[] b, int offset, int length) {
+        double dot = 0.0;
+        for (int i = 0; i < length; i++) {
+            dot += a[i] * b[offset + i];
+        }
+        return dot;
+    }
+
+    static double squaredDistance(double[] a, double[] b, int offset, int length) {
+        double sum = 0.0;
+        for (int i = 0; i < length; i++) {
+            double diff = a[i] - b[offset + i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    static double cosineDistance(double[] a, ByteBuffer b, int offset, int length) {
+        double dot = 0.0;
+        double nru = 0.0;
+        double nrv = 0.0;
+        for (int i = 0; i < length; i++) {
+            double v = b.getDouble(offset + i * Double.BYTES);
+            dot += a[i] * v;
+            nru += a[i] * a[i];
+            nrv += v * v;
+        }
+        double similarity = dot / (Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+
+    static double dot(double[] a, ByteBuffer b, int offset, int length) {
+        double dot = 0.0;
+        for (int i = 0; i < length; i++) {
+            dot += a[i] * b.getDouble(offset + i * Double.BYTES);
+        }
+        return dot;
+    }
+
+    static double squaredDistanceBounded(double[] a, double[] b, int offset, int length, double threshold) {
+        double sum = 0.0;
+        int i = 0;
+        while (i < length) {
+            int blockEnd = Math.min(length, i + DistanceKernels.BOUND_CHECK_INTERVAL);
+            for (; i < blockEnd; i++) {
+                double diff = a[i] - b[offset + i];
+                sum += diff * diff;
+            }
+            if (sum > threshold)
+                return sum;
+        }
+        return sum;
+    }
+
+    static double squaredDistanceBounded(double[] a, ByteBuffer b, int offset, int length, double threshold) {
+        double sum = 0.0;
+        int i = 0;
+        while (i < length) {
+            int blockEnd = Math.min(length, i + DistanceKernels.BOUND_CHECK_INTERVAL);
+            for (; i < blockEnd; i++) {
+                double diff = a[i] - b.getDouble(offset + i * Double.BYTES);
+                sum += diff * diff;
+            }
+            if (sum > threshold)
+                return sum;
+        }
+        return sum;
+    }
+}
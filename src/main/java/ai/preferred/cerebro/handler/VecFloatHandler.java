@@ -9,6 +9,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
@@ -71,4 +73,66 @@ public abstract class VecFloatHandler implements VecHandler<float[]>  {
         }
         return null;
     }
+
+    /**
+     * Generic fallback copying the stored vector out of the slab, child
+     * classes should override this with a loop working on the slab directly.
+     */
+    @Override
+    public float distance(float[] a, float[] slab, int offset) {
+        return distance(a, Arrays.copyOfRange(slab, offset, offset + a.length));
+    }
+
+    @Override
+    public float[] toSlab(float[][] vecs, int dimension) {
+        float[] slab = new float[vecs.length * dimension];
+        for (int i = 0; i < vecs.length; i++) {
+            if (vecs[i] != null)
+                System.arraycopy(vecs[i], 0, slab, i * dimension, dimension);
+        }
+        return slab;
+    }
+
+    @Override
+    public float[] fromSlab(float[] slab, int offset, int dimension) {
+        return Arrays.copyOfRange(slab, offset, offset + dimension);
+    }
+
+    @Override
+    public int dimension(float[] vec) {
+        return vec.length;
+    }
+
+    @Override
+    public double get(float[] vec, int index) {
+        return vec[index];
+    }
+
+    @Override
+    public int bytesPerElement() {
+        return Float.BYTES;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer, float[] vec) {
+        for (int i = 0; i < vec.length; i++)
+            buffer.putFloat(vec[i]);
+    }
+
+    @Override
+    public float[] read(ByteBuffer buffer, int offset, int dimension) {
+        float[] vec = new float[dimension];
+        for (int i = 0; i < dimension; i++)
+            vec[i] = buffer.getFloat(offset + i * Float.BYTES);
+        return vec;
+    }
+
+    /**
+     * Generic fallback reading the stored vector out of the buffer, child
+     * classes should override this with a loop working on the buffer directly.
+     */
+    @Override
+    public float distance(float[] a, ByteBuffer data, int offset) {
+        return distance(a, read(data, offset, a.length));
+    }
 }
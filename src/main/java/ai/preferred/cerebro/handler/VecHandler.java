@@ -4,6 +4,7 @@ import ai.preferred.cerebro.hnsw.Node;
 import org.apache.lucene.document.Document;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
@@ -58,6 +59,147 @@ public interface VecHandler<TVector> {
      * @param b
      * @return distance between two vectors
      */
-    double distance(TVector a, TVector b);
-}
+    float distance(TVector a, TVector b);
+
+    /**
+     * Same as {@link #distance(Object, Object)} but the second vector is read
+     * directly out of a slab built by {@link #toSlab(Object[], int)}, without
+     * materializing it as a separate object.
+     * @param a
+     * @param slab contiguous storage of many vectors
+     * @param offset position in the slab of the first element of the second vector
+     * @return distance between two vectors
+     */
+    float distance(TVector a, TVector slab, int offset);
+
+    /**
+     * Convert a distance into the score of a search result, higher scores
+     * being better. Must decrease as the distance grows so that results of
+     * different segments merge correctly. One minus the distance by default,
+     * the cosine similarity for cosine distances.
+     * @param distance distance between the query and a result
+     * @return score of the result
+     */
+    default float score(float distance) {
+        return 1 - distance;
+    }
+
+    /**
+     * Transform a vector once before it is stored in a segment or searched
+     * for, so that {@link #distance(Object, Object)} can rely on properties
+     * both vectors then share, such as a unit norm. Returns the vector itself
+     * by default. Implementations must not modify the given vector.
+     * @param vec a vector to insert or a query
+     * @return the vector to store or search with
+     */
+    default TVector prepare(TVector vec) {
+        return vec;
+    }
+
+    /**
+     * Same as {@link #distance(Object, Object)} but the computation may stop
+     * once the distance is known to be above a threshold, then returning any
+     * value above it. Used where vectors farther than a bound are discarded,
+     * which for high dimensional vectors is most of the ones compared.
+     * Computes the whole distance by default.
+     * @param a
+     * @param b
+     * @param threshold distance past which the exact value does not matter
+     * @return distance between two vectors if not above the threshold
+     */
+    default float distanceBounded(TVector a, TVector b, float threshold) {
+        return distance(a, b);
+    }
 
+    /**
+     * Same as {@link #distanceBounded(Object, Object, float)} with the second
+     * vector read out of a slab, see {@link #distance(Object, Object, int)}.
+     * @param a
+     * @param slab contiguous storage of many vectors
+     * @param offset position in the slab of the first element of the second vector
+     * @param threshold distance past which the exact value does not matter
+     * @return distance between two vectors if not above the threshold
+     */
+    default float distanceBounded(TVector a, TVector slab, int offset, float threshold) {
+        return distance(a, slab, offset);
+    }
+
+    /**
+     * Pack an array of vectors of the same dimension into one contiguous
+     * slab, the vector at index i starting at offset i * dimension.
+     * Null entries (deleted nodes) are left zeroed.
+     * @param vecs the vectors to pack
+     * @param dimension number of elements of each vector
+     * @return the slab
+     */
+    TVector toSlab(TVector[] vecs, int dimension);
+
+    /**
+     * Copy a single vector out of a slab built by {@link #toSlab(Object[], int)}.
+     * @param slab contiguous storage of many vectors
+     * @param offset position in the slab of the first element of the vector
+     * @param dimension number of elements of the vector
+     * @return a standalone copy of the vector
+     */
+    TVector fromSlab(TVector slab, int offset, int dimension);
+
+    /**
+     * @param vec
+     * @return the number of elements of the vector
+     */
+    int dimension(TVector vec);
+
+    /**
+     * @return the number of bytes an element of a vector takes in the
+     * binary segment format read through memory mapping
+     */
+    int bytesPerElement();
+
+    /**
+     * Write a vector at the current position of a buffer, in the byte
+     * order of the buffer.
+     * @param buffer the buffer to write to
+     * @param vec the vector to write
+     */
+    void write(ByteBuffer buffer, TVector vec);
+
+    /**
+     * Read a vector written by {@link #write(ByteBuffer, Object)}.
+     * @param buffer the buffer to read from
+     * @param offset absolute position in bytes of the vector in the buffer
+     * @param dimension number of elements of the vector
+     * @return the vector
+     */
+    TVector read(ByteBuffer buffer, int offset, int dimension);
+
+    /**
+     * Same as {@link #distance(Object, Object)} but the second vector is read
+     * directly out of a buffer, usually a memory-mapped segment file, without
+     * copying it to the heap.
+     * @param a
+     * @param data buffer containing vectors written by {@link #write(ByteBuffer, Object)}
+     * @param offset absolute position in bytes of the second vector in the buffer
+     * @return distance between two vectors
+     */
+    float distance(TVector a, ByteBuffer data, int offset);
+
+    /**
+     * Same as {@link #distanceBounded(Object, Object, float)} with the second
+     * vector read out of a buffer, see {@link #distance(Object, ByteBuffer, int)}.
+     * @param a
+     * @param data buffer containing vectors written by {@link #write(ByteBuffer, Object)}
+     * @param offset absolute position in bytes of the second vector in the buffer
+     * @param threshold distance past which the exact value does not matter
+     * @return distance between two vectors if not above the threshold
+     */
+    default float distanceBounded(TVector a, ByteBuffer data, int offset, float threshold) {
+        return distance(a, data, offset);
+    }
+
+    /**
+     * @param vec
+     * @param index position of the element in the vector
+     * @return the element as a double, used to quantize vectors
+     */
+    double get(TVector vec, int index);
+}
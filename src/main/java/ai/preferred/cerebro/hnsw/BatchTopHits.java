@@ -0,0 +1,122 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.Arrays;
+
+/**
+ * Results of {@link HnswIndexSearcher#searchBatch(Object[], int)} held in
+ * flat primitive arrays instead of one {@link org.apache.lucene.search.TopDocs}
+ * per query.
+ * </br>
+ * The hits of query q occupy positions [q * k, q * k + count(q)) of
+ * the arrays, best first.
+ */
+public class BatchTopHits {
+    //largest array the JVMs allocate
+    static final int MAX_HITS = Integer.MAX_VALUE - 8;
+
+    private final int k;
+    final int[] ids;
+    final float[] scores;
+    final int[] counts;
+
+    /**
+     * Empty results of a batch, to be filled with {@link #set(int, int[], float[], int)}.
+     * @param numQueries number of queries in the batch
+     * @param k maximum number of hits of each query
+     * @throws IllegalArgumentException if the batch holds more than {@link #MAX_HITS} hits,
+     *                                  in which case it must be searched in several parts
+     */
+    public BatchTopHits(int numQueries, int k) {
+        long hits = (long) numQueries * k;
+        if (numQueries < 0 || k < 0 || hits > MAX_HITS)
+            throw new IllegalArgumentException("A batch of " + numQueries + " queries with k = " + k
+                    + " holds more than " + MAX_HITS + " hits, split it");
+        this.k = k;
+        this.ids = new int[(int) hits];
+        this.scores = new float[(int) hits];
+        this.counts = new int[numQueries];
+    }
+
+    /**
+     * @return maximum number of hits of each query
+     */
+    public int k() {
+        return k;
+    }
+
+    /**
+     * @return number of queries in the batch
+     */
+    public int size() {
+        return counts.length;
+    }
+
+    /**
+     * @param query index of the query in the batch
+     * @return number of hits found for that query, at most k
+     */
+    public int count(int query) {
+        return counts[query];
+    }
+
+    /**
+     * @param query index of the query in the batch
+     * @param rank rank of the hit, 0 being the best
+     * @return external id of the hit
+     */
+    public int id(int query, int rank) {
+        return ids[query * k + rank];
+    }
+
+    /**
+     * @param query index of the query in the batch
+     * @param rank rank of the hit, 0 being the best
+     * @return score of the hit
+     */
+    public float score(int query, int rank) {
+        return scores[query * k + rank];
+    }
+
+    /**
+     * Replace the hits of a query, for example with ground truth read from a file.
+     * @param query index of the query in the batch
+     * @param ids external ids of the hits, best first
+     * @param scores scores of the hits, null if unknown in which case they are zero
+     * @param count number of hits, at most k
+     */
+    public void set(int query, int[] ids, float[] scores, int count) {
+        if (count > k)
+            throw new IllegalArgumentException("More than k hits");
+        System.arraycopy(ids, 0, this.ids, query * k, count);
+        if (scores != null)
+            System.arraycopy(scores, 0, this.scores, query * k, count);
+        else
+            Arrays.fill(this.scores, query * k, query * k + count, 0);
+        counts[query] = count;
+    }
+
+    /**
+     * Fraction of the hits of a reference that these hits contain, the
+     * reference being typically the exact results of the same queries.
+     * @param truth hits of the same queries to compare with
+     * @return recall of these hits, 1 if the reference has no hit
+     */
+    public double recall(BatchTopHits truth) {
+        if (truth.size() != size())
+            throw new IllegalArgumentException("Batches hold different numbers of queries");
+        long expected = 0;
+        long found = 0;
+        int[] sorted = new int[truth.k];
+        for (int q = 0; q < size(); q++) {
+            int truthCount = truth.count(q);
+            System.arraycopy(truth.ids, q * truth.k, sorted, 0, truthCount);
+            Arrays.sort(sorted, 0, truthCount);
+            for (int rank = 0; rank < count(q); rank++) {
+                if (Arrays.binarySearch(sorted, 0, truthCount, id(q, rank)) >= 0)
+                    found++;
+            }
+            expected += truthCount;
+        }
+        return expected == 0 ? 1 : (double) found / expected;
+    }
+}
@@ -4,7 +4,7 @@ import java.io.Serializable;
 import java.util.Arrays;
 
 /**
- * Bitset for tracking visited nodes.
+ * Bitset for tracking a set of node ids, see {@link VisitedSet} for visited nodes.
  */
 public class BitSet implements Serializable {
 
@@ -0,0 +1,105 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.Arrays;
+
+/**
+ * Binary heap of (node id, distance) pairs kept in two primitive arrays,
+ * meant to be cleared and reused across queries instead of allocating a
+ * {@link Candidate} per visited node.
+ * </br>
+ * Both orders share one max heap implementation: a min heap simply
+ * stores negated distances.
+ */
+final class CandidateHeap {
+    private final float sign;
+    private int[] ids;
+    private float[] keys;
+    private int size;
+
+    /**
+     * @param initialCapacity number of pairs held before the arrays need to grow
+     * @param maxHeap true if {@link #topId()} should be the farthest node,
+     *                false if it should be the nearest
+     */
+    CandidateHeap(int initialCapacity, boolean maxHeap) {
+        this.sign = maxHeap ? 1f : -1f;
+        this.ids = new int[Math.max(1, initialCapacity)];
+        this.keys = new float[ids.length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int topId() {
+        return ids[0];
+    }
+
+    float topDistance() {
+        return keys[0] * sign;
+    }
+
+    void push(int id, float distance) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        float key = distance * sign;
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] >= key)
+                break;
+            ids[i] = ids[parent];
+            keys[i] = keys[parent];
+            i = parent;
+        }
+        ids[i] = id;
+        keys[i] = key;
+    }
+
+    /**
+     * Remove the top pair.
+     * @return id of the removed pair
+     */
+    int pop() {
+        int top = ids[0];
+        size--;
+        if (size > 0)
+            siftDown(ids[size], keys[size]);
+        return top;
+    }
+
+    /**
+     * Replace the top pair, cheaper than a pop followed by a push.
+     */
+    void replaceTop(int id, float distance) {
+        siftDown(id, distance * sign);
+    }
+
+    private void siftDown(int id, float key) {
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && keys[right] > keys[child])
+                child = right;
+            if (key >= keys[child])
+                break;
+            ids[i] = ids[child];
+            keys[i] = keys[child];
+            i = child;
+        }
+        ids[i] = id;
+        keys[i] = key;
+    }
+}
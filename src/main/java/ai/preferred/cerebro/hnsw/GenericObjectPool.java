@@ -1,11 +1,14 @@
 package ai.preferred.cerebro.hnsw;
 
 import java.io.Serializable;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 /**
- * Generic object pool.
+ * Generic object pool that never blocks: when every pooled object is
+ * borrowed a new one is created, and objects returned while the pool
+ * already holds maxPoolSize idle ones are left to the garbage collector.
  *
  * @param <T> type of object to pool
  */
@@ -13,18 +16,36 @@ public class GenericObjectPool<T> implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
-    private final ArrayBlockingQueue<T> items;
+    private final ConcurrentLinkedQueue<T> items;
+    private final AtomicInteger idle;
+    private final Supplier<T> supplier;
+    private volatile int maxPoolSize;
 
     /**
      * Constructs a new pool
      *
      * @param supplier used to create instances of the object to pool
-     * @param maxPoolSize maximum items to have in the pool
+     * @param maxPoolSize maximum idle items to keep in the pool
      */
     GenericObjectPool(Supplier<T> supplier, int maxPoolSize) {
-        this.items = new ArrayBlockingQueue<>(maxPoolSize);
+        this(supplier, maxPoolSize, maxPoolSize);
+    }
+
+    /**
+     * Constructs a new pool holding fewer objects than it may keep, the
+     * others being created on first borrow.
+     *
+     * @param supplier used to create instances of the object to pool
+     * @param initialSize number of items created up front
+     * @param maxPoolSize maximum idle items to keep in the pool
+     */
+    GenericObjectPool(Supplier<T> supplier, int initialSize, int maxPoolSize) {
+        this.items = new ConcurrentLinkedQueue<>();
+        this.idle = new AtomicInteger(initialSize);
+        this.supplier = supplier;
+        this.maxPoolSize = maxPoolSize;
 
-        for (int i = 0; i < maxPoolSize; i++) {
+        for (int i = 0; i < initialSize; i++) {
             items.add(supplier.get());
         }
     }
@@ -35,19 +56,49 @@ public class GenericObjectPool<T> implements Serializable {
      * @return the borrowed object
      */
     public T borrowObject() {
-        try {
-            return items.take();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e); // TODO jk any more elegant way to do this ?
+        T item = items.poll();
+        if (item == null)
+            return supplier.get();
+        idle.decrementAndGet();
+        return item;
+    }
+
+    /**
+     * Raise the number of idle objects the pool keeps, creating the missing
+     * ones, so that as many threads can borrow at once without allocating.
+     *
+     * @param size the new maximum, ignored if not above the current one
+     */
+    void ensureSize(int size) {
+        if (size <= maxPoolSize)
+            return;
+        synchronized (this) {
+            for (int i = maxPoolSize; i < size; i++) {
+                items.add(supplier.get());
+                idle.incrementAndGet();
+            }
+            maxPoolSize = Math.max(maxPoolSize, size);
         }
     }
 
+    /**
+     * Drop the idle objects, borrowed ones returned later are kept again.
+     */
+    void clear() {
+        while (items.poll() != null)
+            idle.decrementAndGet();
+    }
+
     /**
      * Returns an instance to the pool. By contract, obj must have been obtained using {@link GenericObjectPool#borrowObject()}
      *
      * @param item the item to return to the pool
      */
     public void returnObject(T item) {
+        if (idle.incrementAndGet() > maxPoolSize) {
+            idle.decrementAndGet();
+            return;
+        }
         items.add(item);
     }
 
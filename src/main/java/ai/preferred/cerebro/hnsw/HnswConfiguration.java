@@ -1,5 +1,6 @@
 package ai.preferred.cerebro.hnsw;
 
+import ai.preferred.cerebro.handler.QuantizableHandler;
 import ai.preferred.cerebro.handler.VecHandler;
 
 import java.util.Comparator;
@@ -46,6 +47,8 @@ public class HnswConfiguration {
 
     boolean useHeuristic = DEFAULT_HEURISTIC_MODE;
     boolean lowMemoryMode = DEFAULT_MEMORY_MODE;
+    boolean scalarQuantization = false;
+    int productQuantization = 0;
 
     public HnswConfiguration(VecHandler handler) {
         this.handler = handler;
@@ -129,4 +132,37 @@ public class HnswConfiguration {
     public void setLowMemoryMode(boolean lowMemoryMode) {
         this.lowMemoryMode = lowMemoryMode;
     }
+
+    /**
+     * Also save a copy of the vectors quantized to one byte per element. Searches
+     * walk the graph using the quantized vectors, reading up to 8 times less memory
+     * per distance, then rerank their final candidates with the original vectors.
+     * Requires a {@link QuantizableHandler}, saving fails otherwise.
+     * @param scalarQuantization
+     */
+    public void setScalarQuantization(boolean scalarQuantization) {
+        this.scalarQuantization = scalarQuantization;
+    }
+
+    public boolean isScalarQuantization() {
+        return scalarQuantization;
+    }
+
+    /**
+     * Also save a product quantized copy of the vectors: the dimensions are split into
+     * the given number of subspaces and a vector is stored as one byte per subspace,
+     * the index of its nearest centroid in a codebook trained by k-means at save time.
+     * Searches walk the graph by summing per-query tables of the query's dot product with
+     * every centroid, then rerank their final candidates with the original vectors. Takes
+     * precedence over scalar quantization in searches if both are enabled. Requires a
+     * {@link QuantizableHandler}, saving fails otherwise.
+     * @param subspaces number of subspaces, at most the dimension of the vectors, 0 to disable
+     */
+    public void setProductQuantization(int subspaces) {
+        this.productQuantization = subspaces;
+    }
+
+    public int getProductQuantization() {
+        return productQuantization;
+    }
 }
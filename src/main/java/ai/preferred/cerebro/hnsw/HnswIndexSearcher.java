@@ -1,40 +1,100 @@
 package ai.preferred.cerebro.hnsw;
 
+import ai.preferred.cerebro.handler.VecHandler;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.ThreadInterruptedException;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
 
 
 /**
  * Manager class to start search on all leaf segments and then aggregate
  * (using K-way merging algorithm) their results to get the top k.
+ * </br>
+ * The search of each leaf segment runs on an {@link Executor}, either
+ * one given by the caller or a fixed thread pool owned by the searcher
+ * and shut down by {@link #close()}.
  *
  * @param <TVector> type of the vector supported
  *
  * @author hpminh@apcs.vn
  */
-public class HnswIndexSearcher<TVector> extends ParentHnsw<TVector> {
-    ExecutorService executor;
+public class HnswIndexSearcher<TVector> extends ParentHnsw<TVector> implements AutoCloseable {
+    //number of queries whose per-segment hits searchBatch() buffers at once
+    private static final int BATCH_BLOCK_SIZE = 1024;
+
+    Executor executor;
+    //the pool created by the searcher itself, null if the executor was given
+    private ExecutorService ownedExecutor;
+    //number of threads of the executor, or of cores if it is not known
+    private final int parallelism;
+    private QueryCache queryCache;
+    //tells the results this searcher cached from those of any other searcher
+    //of the same directory, which may have opened another state of the index
+    private static final AtomicLong LOAD_EPOCHS = new AtomicLong();
+    private final long loadEpoch = LOAD_EPOCHS.incrementAndGet();
+    //per-segment hits of the synchronous searches, one per search in progress
+    private final GenericObjectPool<LeafHits> leafHitsPool;
 
     /**
-     * Load into memory all the leaf segments of an already existing index
+     * Load into memory all the leaf segments of an already existing index,
+     * leaf segments are searched on a thread pool owned by this searcher
      * @param idxDir
      */
     public HnswIndexSearcher(String idxDir){
-        super(idxDir);
-        executor = Executors.newFixedThreadPool(nleaves);
+        this(idxDir, null);
+    }
+
+    /**
+     * Load into memory all the leaf segments of an already existing index
+     * @param idxDir
+     * @param executor runs the search of each leaf segment, for example a shared
+     *                 {@link ForkJoinPool}. It is not shut down by {@link #close()}.
+     *                 If null the searcher creates and owns a fixed thread pool of
+     *                 one thread per leaf segment or per core, whichever is more.
+     *                 Searches split with {@link SearchParams#setSegmentParallelism(int)}
+     *                 only gain from an executor of about that many threads per segment.
+     */
+    public HnswIndexSearcher(String idxDir, Executor executor){
+        super(idxDir, false);
+        if (executor == null) {
+            ownedExecutor = Executors.newFixedThreadPool(Math.max(nleaves, Runtime.getRuntime().availableProcessors()));
+            executor = ownedExecutor;
+        }
+        this.executor = executor;
+        this.parallelism = parallelism(executor);
         int maxNodeCount = 0;
         leaves = new LeafSegmentSearcher[nleaves];
         //load all leaves
         for (int i = 0; i < nleaves; i++) {
-            leaves[i] = new LeafSegmentSearcher<>(this, i, idxDir);
+            leaves[i] = new LeafSegmentSearcher<>(this, i, idxDir, executor);
             if (leaves[i].getNodeCount() > maxNodeCount)
                 maxNodeCount = leaves[i].getNodeCount();
         }
-        int finalMaxNodeCount = maxNodeCount;
-        this.visitedBitSetPool = new GenericObjectPool<>(() -> new BitSet(finalMaxNodeCount), nleaves);
+        //working memory is borrowed by each search and given back, so that
+        //idle buffers are bounded by the searcher and not by its callers' threads
+        this.maxLeafNodeCount = maxNodeCount;
+        //a thread waiting on the workers of its segment holds a scratch while running one of them
+        searchScratchPool = new GenericObjectPool<>(() -> new SearchScratch(configuration.ef, maxLeafNodeCount),
+                0, 2 * parallelism);
+        leafHitsPool = new GenericObjectPool<>(() -> new LeafHits(nleaves), 0, parallelism);
+    }
+
+    /**
+     * Answer repeated queries from a cache of results. Results cached by
+     * other searchers of this index, which may have opened an older state
+     * of it, are dropped from it.
+     * Searches with a filter and batch searches are never cached.
+     * @param queryCache the cache, possibly shared with other searchers, null to disable caching
+     */
+    public void setQueryCache(QueryCache queryCache){
+        if (queryCache != null)
+            queryCache.invalidate(idxDir, loadEpoch);
+        this.queryCache = queryCache;
     }
 
     /**
@@ -44,31 +104,435 @@ public class HnswIndexSearcher<TVector> extends ParentHnsw<TVector> {
      * @return the internal Ids of the top results and their scores
      */
     public TopDocs search(TVector query, int k){
-        final int limit = Math.max(1, configuration.maxItemLeaf);
-        final int cappedNumHits = Math.min(k, limit);
+        return search(query, new SearchParams(k));
+    }
+
+    /**
+     * conduct search on all leaf segment then aggregate, keeping only
+     * the results whose external id is set in acceptDocs
+     * @param query the query vectors
+     * @param k the number of top results to be selected
+     * @param acceptDocs the external ids allowed in the results
+     * @return the internal Ids of the top results and their scores
+     */
+    public TopDocs search(TVector query, int k, Bits acceptDocs){
+        SearchParams params = new SearchParams(k);
+        params.setAcceptDocs(acceptDocs);
+        return search(query, params);
+    }
+
+    /**
+     * conduct search on all leaf segment then aggregate, keeping only
+     * the results whose external id passes the filter
+     * @param query the query vectors
+     * @param k the number of top results to be selected
+     * @param filter test passed by the external ids allowed in the results
+     * @return the internal Ids of the top results and their scores
+     */
+    public TopDocs searchFiltered(TVector query, int k, IntPredicate filter){
+        SearchParams params = new SearchParams(k);
+        params.setFilter(filter);
+        return search(query, params);
+    }
+
+    /**
+     * conduct search on all leaf segment then aggregate, with settings
+     * other than the ones the index was saved with
+     * @param query the query vectors
+     * @param params the settings of this search
+     * @return the internal Ids of the top results and their scores
+     */
+    public TopDocs search(TVector query, SearchParams params){
+        final int cappedNumHits = cappedNumHits(params);
+        LeafHits hits = leafHitsPool.borrowObject();
+        try {
+            hits.ensureCapacity(params.segmentK(), cappedNumHits);
+            int count = search(query, params, hits, cappedNumHits, hits.ids[nleaves], hits.scores[nleaves]);
+            return count < 0 ? hits.cached : hits.toTopDocs(count);
+        } finally {
+            leafHitsPool.returnObject(hits);
+        }
+    }
+
+    /**
+     * Same as {@link #search(Object, SearchParams)} writing the results into arrays of
+     * the caller rather than into a {@link TopDocs}, so that callers reusing their arrays
+     * across queries make a search allocate no object per hit.
+     * @param query the query vector
+     * @param params the settings of this search
+     * @param ids receives the external Ids of the top results, best first, from index 0
+     * @param scores receives the scores of the top results
+     * @return the number of results written, at most k
+     */
+    public int search(TVector query, SearchParams params, int[] ids, float[] scores){
+        final int cappedNumHits = cappedNumHits(params);
+        if (ids.length < cappedNumHits || scores.length < cappedNumHits)
+            throw new IllegalArgumentException("Result arrays are shorter than k");
+        LeafHits hits = leafHitsPool.borrowObject();
+        try {
+            hits.ensureCapacity(params.segmentK(), cappedNumHits);
+            int count = search(query, params, hits, cappedNumHits, ids, scores);
+            if (count >= 0)
+                return count;
+            ScoreDoc[] cached = hits.cached.scoreDocs;
+            for (int i = 0; i < cached.length; i++) {
+                ids[i] = cached[i].doc;
+                scores[i] = cached[i].score;
+            }
+            return cached.length;
+        } finally {
+            leafHitsPool.returnObject(hits);
+        }
+    }
+
+    //search every segment and merge their hits into ids and scores, the
+    //segment of every hit going to hits.shards. Returns -1 if the results
+    //came from the cache instead, they are then left in hits.cached
+    private int search(TVector query, SearchParams params, LeafHits hits, int cappedNumHits,
+                       int[] ids, float[] scores){
+        final QueryCache cache = params.filter == null ? queryCache : null;
+        if (cache != null) {
+            hits.cached = cache.get(idxDir, loadEpoch, query, params);
+            if (hits.cached != null)
+                return -1;
+        }
+        await(searchLeaves(prepare(query), params, hits));
+        int count = mergeHits(hits.ids, hits.scores, hits.counts, 0, 0, hits.cursors,
+                cappedNumHits, ids, scores, 0, hits.shards);
+        if (cache != null) {
+            TopDocs merged = hits.toTopDocs(count, ids, scores);
+            cacheResults(cache, query, params, merged);
+        }
+        return count;
+    }
+
+    /**
+     * Find the true top results by computing the distance to every item, the
+     * segments being scanned in parallel. Much slower than {@link #search(Object, int)},
+     * meant to check its recall.
+     * @param query the query vector
+     * @param k the number of top results to be selected
+     * @return the internal Ids of the top results and their scores
+     * @see SearchParams#setExact(boolean)
+     */
+    public TopDocs searchExact(TVector query, int k){
+        SearchParams params = new SearchParams(k);
+        params.setExact(true);
+        return search(query, params);
+    }
+
+    /**
+     * Same as {@link #search(Object, int)} without blocking the calling thread
+     * @param query the query vectors
+     * @param k the number of top results to be selected
+     * @return completes with the internal Ids of the top results and their scores
+     */
+    public CompletableFuture<TopDocs> searchAsync(TVector query, int k){
+        return searchAsync(query, new SearchParams(k));
+    }
+
+    /**
+     * Same as {@link #search(Object, SearchParams)} without blocking the calling thread,
+     * the results are merged by the executor thread finishing the last leaf segment
+     * @param query the query vectors
+     * @param params the settings of this search
+     * @return completes with the internal Ids of the top results and their scores
+     */
+    public CompletableFuture<TopDocs> searchAsync(TVector query, SearchParams params){
+        final QueryCache cache = params.filter == null ? queryCache : null;
+        if (cache != null) {
+            TopDocs cached = cache.get(idxDir, loadEpoch, query, params);
+            if (cached != null)
+                return CompletableFuture.completedFuture(cached);
+        }
+        final int cappedNumHits = cappedNumHits(params);
+        //the hits outlive the call, so they cannot come from the thread's buffers
+        final LeafHits hits = new LeafHits(nleaves);
+        hits.ensureCapacity(params.segmentK(), cappedNumHits);
+        return searchLeaves(prepare(query), params, hits).thenApply(done -> {
+            int count = mergeHits(hits.ids, hits.scores, hits.counts, 0, 0, hits.cursors,
+                    cappedNumHits, hits.ids[nleaves], hits.scores[nleaves], 0, hits.shards);
+            TopDocs merged = hits.toTopDocs(count);
+            if (cache != null)
+                cacheResults(cache, query, params, merged);
+            return merged;
+        });
+    }
+
+    //search every segment for one query, each writing its hits into its own row of the buffers
+    private CompletableFuture<Void> searchLeaves(TVector prepared, SearchParams params, LeafHits hits){
+        final PruningBound bound = params.sharedPruning ? new PruningBound(1) : null;
+        if (params.segmentParallelism > 1)
+            searchScratchPool.ensureSize(2 * parallelism + nleaves * (params.segmentParallelism - 1));
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[nleaves];
+        for (int i = 0; i < nleaves; ++i) {
+            LeafSegmentSearcher<TVector> leaf = (LeafSegmentSearcher<TVector>) leaves[i];
+            final int leafNum = i;
+            futures[i] = CompletableFuture.runAsync(() -> hits.counts[leafNum][0] =
+                    leaf.findNearest(prepared, params, bound, 0, hits.ids[leafNum], hits.scores[leafNum], 0), executor);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    private void cacheResults(QueryCache cache, TVector query, SearchParams params, TopDocs merged){
+        //keyed on a copy as the caller may reuse the query array
+        VecHandler<TVector> handler = handler();
+        int dimension = handler.dimension(query);
+        cache.put(idxDir, loadEpoch, handler.fromSlab(query, 0, dimension),
+                (long) dimension * handler.bytesPerElement(), params, merged);
+    }
+
+    private int cappedNumHits(SearchParams params){
+        return Math.min(params.k, Math.max(1, configuration.maxItemLeaf));
+    }
 
-        final List<Future<TopDocs>> topDocsFutures = new ArrayList<>(nleaves);
+    /**
+     * Find every item within a distance of the query in all leaf segments.
+     * Matches are passed to the collector as the segments find them, in no
+     * particular order, so that large result sets never have to be held in
+     * memory at once. The collector is never called by two threads at a time.
+     * @param query the query vector
+     * @param maxDistance the radius of the search, items at this exact distance included
+     * @param collector receives the external id and score of every match
+     */
+    public void searchRadius(TVector query, float maxDistance, RadiusCollector collector){
+        final RadiusCollector synchronizedCollector = (id, score) -> {
+            synchronized (collector) {
+                collector.collect(id, score);
+            }
+        };
+        final TVector prepared = prepare(query);
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[nleaves];
         for (int i = 0; i < nleaves; ++i) {
             LeafSegmentSearcher<TVector> leaf = (LeafSegmentSearcher<TVector>) leaves[i];
-            topDocsFutures.add(executor.submit(new Callable<TopDocs>() {
-                @Override
-                public TopDocs call() throws Exception {
-                    return leaf.findNearest(query, k);
+            futures[i] = CompletableFuture.runAsync(() -> leaf.findWithin(prepared, maxDistance, synchronizedCollector), executor);
+        }
+        await(CompletableFuture.allOf(futures));
+    }
+
+    /**
+     * Conduct search for many queries at once. The queries are searched by
+     * blocks, the share of a block of each segment being split into as many
+     * tasks as the executor has threads per segment, then the hits of every
+     * query are merged across segments.
+     * @param queries the query vectors
+     * @param k the number of top results to be selected for each query
+     * @return the external Ids of the top results of every query and their scores
+     */
+    public BatchTopHits searchBatch(TVector[] queries, int k){
+        return searchBatch(queries, new SearchParams(k));
+    }
+
+    /**
+     * Find the true top results of many queries, for example as ground truth
+     * to measure the recall of other search settings with
+     * {@link BatchTopHits#recall(BatchTopHits)}.
+     * @param queries the query vectors
+     * @param k the number of top results to be selected for each query
+     * @return the external Ids of the top results of every query and their scores
+     * @see SearchParams#setExact(boolean)
+     */
+    public BatchTopHits searchBatchExact(TVector[] queries, int k){
+        SearchParams params = new SearchParams(k);
+        params.setExact(true);
+        return searchBatch(queries, params);
+    }
+
+    /**
+     * Same as {@link #searchBatch(Object[], int)} with settings other
+     * than the ones the index was saved with.
+     * @param queries the query vectors
+     * @param params the settings shared by the searches of all queries
+     * @return the external Ids of the top results of every query and their scores
+     * @throws IllegalArgumentException if the results of the batch do not fit in an array,
+     *                                  see {@link BatchTopHits#BatchTopHits(int, int)}
+     */
+    public BatchTopHits searchBatch(TVector[] queries, SearchParams params){
+        final int cappedNumHits = cappedNumHits(params);
+        final BatchTopHits results = new BatchTopHits(queries.length, cappedNumHits);
+        final TVector[] prepared = queries.clone();
+        for (int q = 0; q < queries.length; q++)
+            prepared[q] = prepare(queries[q]);
+        final int segmentK = params.segmentK();
+
+        final int blockSize = Math.max(1, Math.min(Math.min(BATCH_BLOCK_SIZE, queries.length),
+                BatchTopHits.MAX_HITS / Math.max(1, segmentK)));
+        //split each segment's share of a block so that the threads of the
+        //executor are kept busy when there are fewer segments than threads
+        final int tasksPerLeaf = Math.max(1, Math.min(blockSize, (parallelism + nleaves - 1) / nleaves));
+        //hits of each segment for the current block, reused across blocks
+        final int[][] leafIds = new int[nleaves][blockSize * segmentK];
+        final float[][] leafScores = new float[nleaves][blockSize * segmentK];
+        final int[][] leafCounts = new int[nleaves][blockSize];
+        final int[] cursors = new int[nleaves];
+
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[nleaves * tasksPerLeaf];
+        for (int start = 0; start < queries.length; start += blockSize) {
+            final int blockStart = start;
+            final int blockEnd = Math.min(start + blockSize, queries.length);
+            final int taskSize = (blockEnd - blockStart + tasksPerLeaf - 1) / tasksPerLeaf;
+            final PruningBound bound = params.sharedPruning ? new PruningBound(blockEnd - blockStart) : null;
+            int taskCount = 0;
+            for (int i = 0; i < nleaves; ++i) {
+                LeafSegmentSearcher<TVector> leaf = (LeafSegmentSearcher<TVector>) leaves[i];
+                final int leafNum = i;
+                for (int taskStart = blockStart; taskStart < blockEnd; taskStart += taskSize) {
+                    final int from = taskStart;
+                    final int to = Math.min(taskStart + taskSize, blockEnd);
+                    futures[taskCount++] = CompletableFuture.runAsync(() -> {
+                        if (params.exact) {
+                            leaf.exactSearch(prepared, from, to, blockStart, params,
+                                    leafIds[leafNum], leafScores[leafNum], leafCounts[leafNum]);
+                            return;
+                        }
+                        for (int q = from; q < to; q++) {
+                            int offset = (q - blockStart) * segmentK;
+                            leafCounts[leafNum][q - blockStart] = leaf.findNearest(prepared[q], params,
+                                    bound, q - blockStart, leafIds[leafNum], leafScores[leafNum], offset);
+                        }
+                    }, executor);
                 }
-            }));
-        }
-        int i =0;
-        final TopDocs[] collectedTopdocs = new TopDocs[nleaves];
-        for (Future<TopDocs> future : topDocsFutures) {
-            try {
-                collectedTopdocs[i] = future.get();
-                i++;
-            } catch (InterruptedException e) {
-                throw new ThreadInterruptedException(e);
-            } catch (ExecutionException e) {
-                throw new RuntimeException(e);
             }
+            await(CompletableFuture.allOf(Arrays.copyOf(futures, taskCount)));
+            for (int q = blockStart; q < blockEnd; q++) {
+                results.counts[q] = mergeHits(leafIds, leafScores, leafCounts, q - blockStart,
+                        (q - blockStart) * segmentK, cursors, cappedNumHits, results.ids, results.scores,
+                        q * cappedNumHits, null);
+            }
+        }
+        return results;
+    }
+
+    //the query transformed the way the segments' vectors were on insert
+    private TVector prepare(TVector query) {
+        return handler().prepare(query);
+    }
+
+    //the configuration holds the handler of the vectors the index was built with
+    @SuppressWarnings("unchecked")
+    private VecHandler<TVector> handler() {
+        return (VecHandler<TVector>) configuration.handler;
+    }
+
+    /**
+     * Shut down the thread pool the searcher created, an executor given
+     * at construction is left running, and drop the idle search buffers
+     * and the mapped files of the leaf segments. Searches are not allowed afterward.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void close() {
+        if (ownedExecutor != null)
+            ownedExecutor.shutdown();
+        searchScratchPool.clear();
+        leafHitsPool.clear();
+        for (int i = 0; i < nleaves; i++)
+            ((LeafSegmentSearcher<TVector>) leaves[i]).close();
+    }
+
+    private static int parallelism(Executor executor){
+        if (executor instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+        if (executor instanceof ForkJoinPool)
+            return ((ForkJoinPool) executor).getParallelism();
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    //wait for a future, rethrowing its failure as an unchecked exception
+    private static <T> T await(CompletableFuture<T> future){
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new ThreadInterruptedException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //k-way merge of the sorted hits every segment found for one query,
+    //ties go to the lower segment as in TopDocs.merge(). The hits of
+    //segment i start at base in leafIds[i] and leafScores[i] and number
+    //leafCounts[i][countIndex]. The segment of every merged hit goes to
+    //shards unless it is null, returns the number of merged hits
+    private int mergeHits(int[][] leafIds, float[][] leafScores, int[][] leafCounts, int countIndex, int base,
+                          int[] cursors, int k, int[] ids, float[] scores, int offset, int[] shards){
+        Arrays.fill(cursors, 0);
+        int count = 0;
+        while (count < k) {
+            int best = -1;
+            float bestScore = 0;
+            for (int i = 0; i < nleaves; i++) {
+                if (cursors[i] < leafCounts[i][countIndex]) {
+                    float score = leafScores[i][base + cursors[i]];
+                    if (best < 0 || score > bestScore) {
+                        best = i;
+                        bestScore = score;
+                    }
+                }
+            }
+            if (best < 0)
+                break;
+            ids[offset + count] = leafIds[best][base + cursors[best]];
+            scores[offset + count] = bestScore;
+            if (shards != null)
+                shards[count] = best;
+            cursors[best]++;
+            count++;
+        }
+        return count;
+    }
+
+    //hits of every segment for one query, one row per segment, and the
+    //merged results. The rows past the last segment hold the merged hits
+    //of searchAsync(), whose caller has no arrays of its own to fill
+    private static final class LeafHits {
+        final int[][] ids;
+        final float[][] scores;
+        final int[][] counts;
+        final int[] cursors;
+        int[] shards = new int[0];
+        private int segmentK;
+        TopDocs cached;
+
+        LeafHits(int nleaves) {
+            ids = new int[nleaves + 1][0];
+            scores = new float[nleaves + 1][0];
+            counts = new int[nleaves][1];
+            cursors = new int[nleaves];
+        }
+
+        void ensureCapacity(int segmentK, int k) {
+            int leaves = counts.length;
+            if (this.segmentK < segmentK) {
+                for (int i = 0; i < leaves; i++) {
+                    ids[i] = new int[segmentK];
+                    scores[i] = new float[segmentK];
+                }
+                this.segmentK = segmentK;
+            }
+            if (shards.length < k) {
+                shards = new int[k];
+                ids[leaves] = new int[k];
+                scores[leaves] = new float[k];
+            }
+            cached = null;
+        }
+
+        //the merged hits of the last row as TopDocs
+        TopDocs toTopDocs(int count) {
+            return toTopDocs(count, ids[counts.length], scores[counts.length]);
+        }
+
+        //ScoreDocs are only built for the merged hits, carrying their
+        //segment as shardIndex like the ones of TopDocs.merge()
+        TopDocs toTopDocs(int count, int[] mergedIds, float[] mergedScores) {
+            long totalHits = 0;
+            for (int[] leafCount : counts)
+                totalHits += leafCount[0];
+            ScoreDoc[] hits = new ScoreDoc[count];
+            for (int i = 0; i < count; i++)
+                hits[i] = new ScoreDoc(mergedIds[i], mergedScores[i], shards[i]);
+            return new TopDocs(totalHits, hits, count == 0 ? Float.NaN : hits[0].score);
         }
-        return TopDocs.merge(0, cappedNumHits, collectedTopdocs, true);
     }
 }
@@ -1,6 +1,6 @@
 package ai.preferred.cerebro.hnsw;
 
-
+import ai.preferred.cerebro.handler.QuantizableHandler;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Output;
 
@@ -42,7 +42,7 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
         this.idxDir = dir;
         OPTIMAL_NUM_LEAVES = Runtime.getRuntime().availableProcessors();
 
-        this.visitedBitSetPool = new GenericObjectPool<>(() -> new BitSet(configuration.maxItemLeaf), Math.max(OPTIMAL_NUM_LEAVES, nleaves));
+        this.visitedSetPool = new GenericObjectPool<>(() -> new VisitedSet(configuration.maxItemLeaf), Math.max(OPTIMAL_NUM_LEAVES, nleaves));
 
 
         if (configuration.lowMemoryMode)
@@ -52,7 +52,7 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
             nleaves = OPTIMAL_NUM_LEAVES;
         lookup = new ConcurrentHashMap<>(nleaves * configuration.maxItemLeaf);
 
-        leaves = new LeafSegmentWriter[nleaves];
+        leaves = newLeaves(nleaves);
         int baseNewLeaf = 0;
         for (int i = 0; i < nleaves; i++) {
             if (configuration.lowMemoryMode)
@@ -72,13 +72,19 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
     public HnswIndexWriter(String dir){
         super(dir);
         OPTIMAL_NUM_LEAVES = Runtime.getRuntime().availableProcessors();
-        this.visitedBitSetPool = new GenericObjectPool<>(() -> new BitSet(configuration.maxItemLeaf), nleaves);
+        this.visitedSetPool = new GenericObjectPool<>(() -> new VisitedSet(configuration.maxItemLeaf), Math.max(OPTIMAL_NUM_LEAVES, nleaves));
         //load all leaves
+        leaves = newLeaves(nleaves);
         for (int i = 0; i < nleaves; i++) {
             leaves[i] = new LeafSegmentWriter<>(this, i, idxDir);
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private LeafSegment<TVector>[] newLeaves(int count){
+        return (LeafSegment<TVector>[]) new LeafSegmentWriter<?>[count];
+    }
+
     private boolean isSafeToCreate(String idxDir){
         File file = new File(idxDir + globalConfigFileName);
         return !IndexUtils.checkFileExist(file);
@@ -90,7 +96,7 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
             System.out.println("Current segment reached maximum capacity, creating and switching to use a new segment.");
             if (leaves.length == nleaves){
                 LeafSegment<TVector>[] hold = leaves;
-                leaves = new LeafSegmentWriter[nleaves + 5];
+                leaves = newLeaves(nleaves + 5);
                 System.arraycopy(hold, 0, leaves, 0, hold.length);
             }
             if (isLeafBlocking)
@@ -182,6 +188,8 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
     @Override
     public void addAll(Collection<Item<TVector>> items, int numThreads, ProgressListener listener, int progressUpdateInterval) throws InterruptedException {
         AtomicReference<RuntimeException> throwableHolder = new AtomicReference<>();
+        //one visited set per indexing thread
+        visitedSetPool.ensureSize(numThreads);
 
         ExecutorService executorService = Executors.newFixedThreadPool(numThreads, new NamedThreadFactory("indexer-%d"));
 
@@ -214,6 +222,7 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
 
     public void singleSegmentAddAll(Collection<Item<TVector>> items, int numThreads, ProgressListener listener, int progressUpdateInterval) throws InterruptedException {
         AtomicReference<RuntimeException> throwableHolder = new AtomicReference<>();
+        visitedSetPool.ensureSize(numThreads);
 
         ExecutorService executorService = Executors.newFixedThreadPool(numThreads,
                 new NamedThreadFactory("indexer-%d"));
@@ -269,6 +278,18 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
         }
     }
 
+    /**
+     * Renumber the nodes of every leaf segment so that nodes close in the graph
+     * are stored close together, which speeds up searches of the saved index
+     * through better cache locality. Call it right before {@link #save()},
+     * not while samples are being added or removed.
+     */
+    public void reorder() {
+        for (int i = 0; i < nleaves; i++) {
+            ((LeafSegmentWriter) leaves[i]).reorder();
+        }
+    }
+
     /**
      * save the index into concrete files. Make sure to call this function before
      * terminating. Otherwise all information is lost.
@@ -276,6 +297,12 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
      */
     @Override
     public void save() throws IOException {
+        //checked before anything is written, queries can only be compared
+        //to quantized vectors through the dot product and norms
+        if ((configuration.scalarQuantization || configuration.productQuantization > 0)
+                && !(configuration.handler instanceof QuantizableHandler))
+            throw new IllegalArgumentException(configuration.handler.getClass().getCanonicalName()
+                    + " does not support quantization");
         synchronized (configuration){
             Kryo kryo = new Kryo();
             kryo.register(String.class);
@@ -289,6 +316,8 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
                 kryo.writeObject(output, configuration.lowMemoryMode);
                 kryo.writeObject(output, configuration.maxItemLeaf);
                 kryo.writeObject(output, nleaves);
+                kryo.writeObject(output, configuration.scalarQuantization);
+                kryo.writeObject(output, configuration.productQuantization);
                 output.close();
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
@@ -8,7 +8,9 @@ import com.esotericsoftware.kryo.io.Output;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
+import java.util.function.Function;
 
 /**
  * Utility class to containing all helper function
@@ -190,6 +192,121 @@ public class IndexUtils {
         return arr;
     }
 
+    /**
+     * Read vectors in the .fvecs format of the SIFT and GloVe datasets,
+     * each vector stored as its dimension then its elements as floats,
+     * little endian.
+     * @param filename filename or path to file to read vectors from
+     * @return the vectors of the file
+     * @throws IOException
+     */
+    public static float[][] readFvecs(String filename) throws IOException {
+        return readFvecs(filename, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #readFvecs(String)} reading only the first vectors.
+     * @param limit maximum number of vectors to read
+     */
+    public static float[][] readFvecs(String filename, int limit) throws IOException {
+        return readVecs(filename, limit, Float.BYTES, buffer -> {
+            float[] vec = new float[buffer.remaining() / Float.BYTES];
+            buffer.asFloatBuffer().get(vec);
+            return vec;
+        }).toArray(new float[0][]);
+    }
+
+    /**
+     * Read vectors in the .bvecs format of the SIFT1B dataset, elements
+     * stored as unsigned bytes and widened to floats.
+     * @param filename filename or path to file to read vectors from
+     * @return the vectors of the file
+     * @throws IOException
+     */
+    public static float[][] readBvecs(String filename) throws IOException {
+        return readBvecs(filename, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #readBvecs(String)} reading only the first vectors.
+     * @param limit maximum number of vectors to read
+     */
+    public static float[][] readBvecs(String filename, int limit) throws IOException {
+        return readVecs(filename, limit, Byte.BYTES, buffer -> {
+            float[] vec = new float[buffer.remaining()];
+            for (int i = 0; i < vec.length; i++)
+                vec[i] = buffer.get() & 0xff;
+            return vec;
+        }).toArray(new float[0][]);
+    }
+
+    /**
+     * Read vectors in the .ivecs format, in which the ground truth of the
+     * SIFT and GloVe datasets is given as the ids of the nearest neighbors
+     * of every query, nearest first.
+     * @param filename filename or path to file to read vectors from
+     * @return the vectors of the file
+     * @throws IOException
+     */
+    public static int[][] readIvecs(String filename) throws IOException {
+        return readIvecs(filename, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #readIvecs(String)} reading only the first vectors.
+     * @param limit maximum number of vectors to read
+     */
+    public static int[][] readIvecs(String filename, int limit) throws IOException {
+        return readVecs(filename, limit, Integer.BYTES, buffer -> {
+            int[] vec = new int[buffer.remaining() / Integer.BYTES];
+            buffer.asIntBuffer().get(vec);
+            return vec;
+        }).toArray(new int[0][]);
+    }
+
+    /**
+     * Save vectors in the .ivecs format read by {@link #readIvecs(String)}.
+     * @param vecs the vectors to save
+     * @param filename filename or path to file to write vectors to
+     * @throws IOException
+     */
+    public static void writeIvecs(int[][] vecs, String filename) throws IOException {
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16)) {
+            for (int[] vec : vecs) {
+                ByteBuffer buffer = ByteBuffer.allocate((vec.length + 1) * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(vec.length);
+                buffer.asIntBuffer().put(vec);
+                output.write(buffer.array());
+            }
+        }
+    }
+
+    //read the records of a .fvecs, .bvecs or .ivecs file, each a little endian
+    //dimension followed by the elements, decoding the elements of each record
+    //from a little endian buffer holding them
+    private static <T> List<T> readVecs(String filename, int limit, int bytesPerElement,
+                                        Function<ByteBuffer, T> decoder) throws IOException {
+        List<T> vecs = new ArrayList<>();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16))) {
+            byte[] bytes = new byte[0];
+            while (vecs.size() < limit) {
+                int dimension;
+                try {
+                    dimension = Integer.reverseBytes(input.readInt());
+                } catch (EOFException e) {
+                    break;
+                }
+                if (dimension < 0)
+                    throw new IllegalArgumentException("Not a vecs file: " + filename);
+                if (bytes.length != dimension * bytesPerElement)
+                    bytes = new byte[dimension * bytesPerElement];
+                input.readFully(bytes);
+                vecs.add(decoder.apply(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)));
+            }
+        }
+        return vecs;
+    }
+
     /**
      * Calculate the the inner product between 2 vectors
      */
@@ -1,6 +1,7 @@
 package ai.preferred.cerebro.hnsw;
 
 
+import ai.preferred.cerebro.handler.QuantizableHandler;
 import ai.preferred.cerebro.handler.VecHandler;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
@@ -9,6 +10,9 @@ import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 import org.eclipse.collections.impl.stack.mutable.primitive.IntArrayStack;
 
 import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -40,6 +44,11 @@ abstract class LeafSegment<TVector> {
     protected final String LOCAL_OUTCONN;
     protected final String LOCAL_INVERT;
     protected final String LOCAL_VECS;
+    protected final String LOCAL_GRAPH_MAPPED;
+    protected final String LOCAL_VECS_MAPPED;
+    protected final String LOCAL_INVERT_MAPPED;
+    protected final String LOCAL_QUANTIZED;
+    protected final String LOCAL_PRODUCT_QUANTIZED;
     //local
     final protected String leafName;
     protected int baseID;
@@ -48,11 +57,24 @@ abstract class LeafSegment<TVector> {
     protected IntArrayStack freedIds;
     protected volatile Node<TVector> entryPoint;
     protected Node<TVector>[] nodes;
+    //search mode only: no Node is built, the adjacency is packed into a
+    //SegmentGraph and external ids are indexed by internal id (-1 if deleted)
+    protected SegmentGraph graph;
+    protected IntBuffer externalIds;
+    //search mode only: the vectors of all nodes packed into one slab,
+    //the vector of the node with internal id i starts at i * dimension,
+    //or the same layout memory-mapped from disk
+    protected TVector vectors;
+    protected SegmentVectors<TVector> mappedVectors;
+    //search mode only: one byte per element copy of the vectors used to
+    //walk the graph, null if the index was saved without quantization
+    protected Quantizer<TVector> quantizer;
+    protected int dimension;
 
 
     //global - same across all leaves
     protected VecHandler<TVector> handler;
-    protected Comparator<Double> distanceComparator;
+    protected Comparator<Float> distanceComparator;
     protected int m;
     protected int maxM;//number of connections allowed each node in higher layers
     protected int maxM0;//number of connections allowed each node in base layer - default to twice
@@ -60,6 +82,8 @@ abstract class LeafSegment<TVector> {
     protected int ef;
     protected int efConstruction; //the size of the set of closest candidates that the heuristic choose from to connect with the new node
     protected boolean removeEnabled;
+    protected boolean scalarQuantization;
+    protected int productQuantization;
     protected int maxNodeCount;
 
     final protected ParentHnsw parent;
@@ -86,6 +110,8 @@ abstract class LeafSegment<TVector> {
         this.efConstruction = Math.max(configuration.efConstruction, m);
         this.ef = configuration.ef;
         this.removeEnabled = configuration.removeEnabled;
+        this.scalarQuantization = configuration.scalarQuantization;
+        this.productQuantization = configuration.productQuantization;
         this.parent = parent;
         this.lookup = parent.getLookup();
         this.leafName = numName + "_";
@@ -96,6 +122,11 @@ abstract class LeafSegment<TVector> {
         LOCAL_OUTCONN = Sp + leafName + "outconns.o";
         LOCAL_INVERT = Sp + leafName + "invert.o";
         LOCAL_VECS = Sp + leafName + "vecs.o";
+        LOCAL_GRAPH_MAPPED = Sp + leafName + "graph.bin";
+        LOCAL_VECS_MAPPED = Sp + leafName + "vecs.bin";
+        LOCAL_INVERT_MAPPED = Sp + leafName + "invert.bin";
+        LOCAL_QUANTIZED = Sp + leafName + "sq8.bin";
+        LOCAL_PRODUCT_QUANTIZED = Sp + leafName + "pq.bin";
 
     }
 
@@ -135,7 +166,12 @@ abstract class LeafSegment<TVector> {
                  String idxDir, Mode mode){
         this(parent, numName);
         this.mode = mode;
-        load(idxDir);
+        if (mode == Mode.SEARCH && hasMappedFiles(idxDir))
+            loadMapped(idxDir);
+        else
+            load(idxDir);
+        if (mode == Mode.SEARCH && (scalarQuantization || productQuantization > 0))
+            loadQuantized(idxDir);
         /*
         if(mode == Mode.SEARCH)
             this.visitedBitSetPool = new GenericObjectPool<>(() -> new ai.preferred.cerebro.hnsw.BitSet(this.nodeCount), Runtime.getRuntime().availableProcessors());
@@ -177,8 +213,31 @@ abstract class LeafSegment<TVector> {
 
      */
 
+    /**
+     * Distance between a vector and the vector of a node in this segment.
+     * Children storing vectors outside of {@link Node} override this.
+     * @param query the vector to compare against
+     * @param internalId the internal id of the node
+     * @return distance between the two vectors
+     */
+    protected float distance(TVector query, int internalId) {
+        return handler.distance(query, nodes[internalId].vector());
+    }
+
+    /**
+     * Same as {@link #distance(Object, int)} but may stop once the distance
+     * is known to be above the threshold, see {@link VecHandler#distanceBounded(Object, Object, float)}.
+     * @param query the vector to compare against
+     * @param internalId the internal id of the node
+     * @param threshold distance past which the exact value does not matter
+     * @return distance between the two vectors if not above the threshold
+     */
+    protected float distance(TVector query, int internalId, float threshold) {
+        return handler.distanceBounded(query, nodes[internalId].vector(), threshold);
+    }
+
     protected BoundedMaxHeap searchLayer(Node<TVector> entryPointNode, TVector destination, int k, int layer){
-        BitSet visitedBitSet = parent.getBitsetFromPool();
+        VisitedSet visitedSet = parent.getVisitedSetFromPool();
         try {
             //a priority queue which can not grow past the initial capacity
             BoundedMaxHeap topCandidates =
@@ -186,15 +245,15 @@ abstract class LeafSegment<TVector> {
 
             PriorityQueue<Candidate> checkNeighborSet = new PriorityQueue<>();
 
-            double distance = handler.distance(destination, entryPointNode.vector());
+            float distance = distance(destination, entryPointNode.internalId);
 
-            Candidate firstCandidade = new Candidate(entryPointNode.internalId, distance, distanceComparator);
+            Candidate firstCandidade = new Candidate(entryPointNode.internalId, distance);
 
             topCandidates.add(firstCandidade);
             checkNeighborSet.add(firstCandidade);
-            visitedBitSet.flipTrue(entryPointNode.internalId);
+            visitedSet.flipTrue(entryPointNode.internalId);
 
-            double lowerBound = distance;
+            float lowerBound = distance;
 
             while (!checkNeighborSet.isEmpty()) {
                 Candidate nodeWithNeighbors = checkNeighborSet.poll();
@@ -209,16 +268,18 @@ abstract class LeafSegment<TVector> {
 
                     int candidateId = candidates.get(i);
 
-                    if (!visitedBitSet.isTrue(candidateId)) {
+                    if (!visitedSet.isTrue(candidateId)) {
 
-                        visitedBitSet.flipTrue(candidateId);
+                        visitedSet.flipTrue(candidateId);
 
-                        double candidateDistance = handler.distance(destination,
-                                nodes[candidateId].vector());
+                        //once the list is full only nodes nearer than its top get in
+                        float candidateDistance = topCandidates.size() < k
+                                ? distance(destination, candidateId)
+                                : distance(destination, candidateId, topCandidates.top().distance);
 
                         if (topCandidates.top().distance > candidateDistance || topCandidates.size() < k) {
 
-                            Candidate newCandidate = new Candidate(candidateId, candidateDistance, distanceComparator);
+                            Candidate newCandidate = new Candidate(candidateId, candidateDistance);
 
                             checkNeighborSet.add(newCandidate);
                             if (topCandidates.size() == k)
@@ -233,8 +294,8 @@ abstract class LeafSegment<TVector> {
             }
             return topCandidates;
         } finally {
-            visitedBitSet.clear();
-            parent.returnBitsetToPool(visitedBitSet);
+            visitedSet.clear();
+            parent.returnVisitedSetToPool(visitedSet);
         }
     }
 
@@ -270,6 +331,22 @@ abstract class LeafSegment<TVector> {
 
         int entryID = loadConfig(configFile);
         TVector[] vecs = handler.load(vecsFile);
+
+        //searching never modifies the segment so vectors and connections
+        //are packed into a few flat arrays instead of one object per node
+        if(mode == Mode.SEARCH){
+            int [] invertLookUp = loadLookup(invertLookUpFile);
+            for (int i = 0; i < nodeCount; i++) {
+                if(vecs[i] == null)
+                    invertLookUp[i] = -1;
+            }
+            externalIds = IntBuffer.wrap(invertLookUp);
+            graph = SegmentGraph.pack(readConns(outConnectionFile), entryID, maxM0);
+            dimension = handler.dimension(vecs[entryID]);
+            vectors = handler.toSlab(vecs, dimension);
+            return;
+        }
+
         IntArrayList[][] outConns = loadConns(outConnectionFile);
         IntArrayList[][] inConns = null;
 
@@ -299,6 +376,61 @@ abstract class LeafSegment<TVector> {
         this.entryPoint = nodes[entryID];
     }
 
+    private boolean hasMappedFiles(String dir){
+        return IndexUtils.checkFileExist(new File(dir + LOCAL_GRAPH_MAPPED))
+                && IndexUtils.checkFileExist(new File(dir + LOCAL_VECS_MAPPED))
+                && IndexUtils.checkFileExist(new File(dir + LOCAL_INVERT_MAPPED));
+    }
+
+    //Only the headers are read, the content of the files
+    //is paged in by the OS as searches touch it
+    private void loadMapped(String dir){
+        File configFile = new File(dir + LOCAL_CONFIG);
+        if (!IndexUtils.checkFileExist(configFile))
+            throw new IllegalArgumentException("Index is corrupted");
+        loadConfig(configFile);
+        try {
+            graph = SegmentGraph.map(new File(dir + LOCAL_GRAPH_MAPPED));
+            mappedVectors = SegmentVectors.map(new File(dir + LOCAL_VECS_MAPPED), handler);
+            try (RandomAccessFile raf = new RandomAccessFile(dir + LOCAL_INVERT_MAPPED, "r");
+                 FileChannel channel = raf.getChannel()) {
+                externalIds = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (graph.nodeCount != nodeCount || mappedVectors.count != nodeCount || externalIds.limit() != nodeCount)
+            throw new IllegalArgumentException("Index is corrupted");
+        dimension = mappedVectors.dimension;
+    }
+
+    //the codes are mapped like the vectors, searches walk the graph on them
+    //and only touch the full vectors to rerank the final candidates. Product
+    //quantization is preferred when the index was saved with both. A handler
+    //that can not compare a query to quantized vectors leaves the segment
+    //searched with the full vectors, as if it was saved without quantization
+    @SuppressWarnings("unchecked")
+    private void loadQuantized(String dir){
+        if (!(handler instanceof QuantizableHandler))
+            return;
+        QuantizableHandler<TVector> quantizable = (QuantizableHandler<TVector>) handler;
+        File productFile = new File(dir + LOCAL_PRODUCT_QUANTIZED);
+        File scalarFile = new File(dir + LOCAL_QUANTIZED);
+        try {
+            if (productQuantization > 0 && IndexUtils.checkFileExist(productFile))
+                quantizer = ProductQuantizer.load(productFile, quantizable);
+            else if (scalarQuantization && IndexUtils.checkFileExist(scalarFile))
+                quantizer = ScalarQuantizer.load(scalarFile, quantizable);
+            else
+                return;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (quantizer.count() != nodeCount)
+            throw new IllegalArgumentException("Index is corrupted");
+    }
+
     //To be handled by parent
     private int[] loadLookup(File lookupFile) {
         int [] lookup = null;
@@ -317,7 +449,20 @@ abstract class LeafSegment<TVector> {
     }
 
     private IntArrayList[][] loadConns(File connFile) {
-        IntArrayList[][] conns = null;
+        int[][][] data = readConns(connFile);
+        IntArrayList[][] conns = new IntArrayList[data.length][];
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == null)
+                continue;
+            conns[i] = new IntArrayList[data[i].length];
+            for (int j = 0; j < data[i].length; j++) {
+                conns[i][j] = new IntArrayList(data[i][j]);
+            }
+        }
+        return conns;
+    }
+
+    private int[][][] readConns(File connFile) {
         int[][][] data = null;
 
         Kryo kryo = new Kryo();
@@ -332,14 +477,7 @@ abstract class LeafSegment<TVector> {
             e.printStackTrace();
         }
         assert nodeCount == data.length;
-        conns = new IntArrayList[data.length][];
-        for (int i = 0; i < data.length; i++) {
-            conns[i] = new IntArrayList[data[i].length];
-            for (int j = 0; j < data[i].length; j++) {
-                conns[i][j] = new IntArrayList(data[i][j]);
-            }
-        }
-        return conns;
+        return data;
     }
 
     private void loadDeletedId(File deletedIdFile) {
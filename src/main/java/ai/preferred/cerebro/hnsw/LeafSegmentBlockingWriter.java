@@ -58,6 +58,11 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
         return Optional.ofNullable(nodes.get(internalID));
     }
 
+    @Override
+    protected void setNode(int internalID, Node<TVector> node) {
+        nodes.set(internalID, node);
+    }
+
     @Override
     public boolean removeOnInternalID(int internalID) {
         if (!removeEnabled) {
@@ -116,6 +121,7 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
      */
     @Override
     public boolean add(Item<TVector> item) {
+        item = prepare(item);
         globalLock.lock();
         try {
             Integer globalId = lookup.get(item.externalId);
@@ -198,7 +204,7 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
 
                 Node<TVector> newNode = new Node<>(internalId, outConns, inConns, item);
                 nodes.set(internalId, newNode);
-                lookup.put(item.externalId, internalId + baseID);
+                    lookup.put(item.externalId, internalId + baseID);
 
                 Node<TVector> curNode = entryPointCopy;
 
@@ -208,7 +214,7 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
                     //if no layer added
                     if (newNode.maxLevel() < entryPointCopy.maxLevel()) {
 
-                        double curDist = handler.distance(newNode.vector(), curNode.vector());
+                        float curDist = handler.distance(newNode.vector(), curNode.vector());
                         //sequentially zoom in until reach the layer next to
                         // the highest layer that the new node has to be inserted
                         for (int curLevel = entryPointCopy.maxLevel(); curLevel > newNode.maxLevel(); curLevel--) {
@@ -226,7 +232,7 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
 
                                         Node<TVector> candidateNode = nodes.get(candidateId);
 
-                                        double candidateDistance = handler.distance(newNode.vector(), candidateNode.vector());
+                                        float candidateDistance = handler.distance(newNode.vector(), candidateNode.vector());
 
                                         //updating the starting node to be used at lower level
                                         if (candidateDistance < curDist) {
@@ -321,14 +327,14 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
                 } else {
                     // finding the "weakest" element to replace it with the new one
 
-                    double dMax = handler.distance(newNodeVector, neighbourNode.vector());
+                    float dMax = handler.distance(newNodeVector, neighbourNode.vector());
 
                     BoundedMaxHeap candidates = new BoundedMaxHeap(bestN + 1, ()-> null);
-                    candidates.add(new Candidate(newNodeId, dMax, distanceComparator));
+                    candidates.add(new Candidate(newNodeId, dMax));
 
                     outNeighbourConnsAtLevel.forEach(id -> {
-                        double dist = handler.distance(neighbourVector, nodes.get(id).vector());
-                        candidates.add(new Candidate(id, dist, distanceComparator));
+                        float dist = handler.distance(neighbourVector, nodes.get(id).vector());
+                        candidates.add(new Candidate(id, dist));
                     });
 
                     MutableIntList prunedConnections = removeEnabled ? new IntArrayList() : null;
@@ -380,14 +386,15 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
             if (returnList.size() >= m) {
                 good = false;
             } else {
-                double distToQuery = currentPair.distance;
+                float distToQuery = currentPair.distance;
 
                 good = true;
                 for (Candidate secondPair : returnList) {
 
-                    double curdist = handler.distance(
+                    float curdist = handler.distanceBounded(
                             nodes.get(secondPair.nodeId).vector(),
-                            nodes.get(currentPair.nodeId).vector()
+                            nodes.get(currentPair.nodeId).vector(),
+                            distToQuery
                     );
 
                     if (curdist < distToQuery) {
@@ -413,21 +420,21 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
     protected BoundedMaxHeap searchLayer(
             Node<TVector> entryPointNode, TVector destination, int k, int layer) {
 
-        BitSet visitedBitSet = parent.getBitsetFromPool();
+        VisitedSet visitedSet = parent.getVisitedSetFromPool();
 
         try {
             BoundedMaxHeap topCandidates = new BoundedMaxHeap(k, ()-> null);
             PriorityQueue<Candidate> checkNeighborSet = new PriorityQueue<>();
 
-            double distance = handler.distance(destination, entryPointNode.vector());
+            float distance = handler.distance(destination, entryPointNode.vector());
 
-            Candidate firstCandidade = new Candidate(entryPointNode.internalId, distance, distanceComparator);
+            Candidate firstCandidade = new Candidate(entryPointNode.internalId, distance);
 
             topCandidates.add(firstCandidade);
             checkNeighborSet.add(firstCandidade);
-            visitedBitSet.flipTrue(entryPointNode.internalId);
+            visitedSet.flipTrue(entryPointNode.internalId);
 
-            double lowerBound = distance;
+            float lowerBound = distance;
 
             while (!checkNeighborSet.isEmpty()) {
 
@@ -447,16 +454,18 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
 
                         int candidateId = candidates.get(i);
 
-                        if (!visitedBitSet.isTrue(candidateId)) {
+                        if (!visitedSet.isTrue(candidateId)) {
 
-                            visitedBitSet.flipTrue(candidateId);
+                            visitedSet.flipTrue(candidateId);
 
-                            double candidateDistance = handler.distance(destination,
-                                    nodes.get(candidateId).vector());
+                            TVector candidateVector = nodes.get(candidateId).vector();
+                            float candidateDistance = topCandidates.size() < k
+                                    ? handler.distance(destination, candidateVector)
+                                    : handler.distanceBounded(destination, candidateVector, topCandidates.top().distance);
 
                             if (topCandidates.top().distance > candidateDistance || topCandidates.size() < k) {
 
-                                Candidate newCandidate = new Candidate(candidateId, candidateDistance, distanceComparator);
+                                Candidate newCandidate = new Candidate(candidateId, candidateDistance);
                                 checkNeighborSet.add(newCandidate);
                                 if (topCandidates.size() == k)
                                     topCandidates.updateTop(newCandidate);
@@ -473,8 +482,8 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
 
             return topCandidates;
         } finally {
-            visitedBitSet.clear();
-            parent.returnBitsetToPool(visitedBitSet);
+            visitedSet.clear();
+            parent.returnVisitedSetToPool(visitedSet);
         }
     }
 
@@ -547,7 +556,8 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
         synchronized (nodes){
             int[] invertLookUp = new int[nodeCount];
             for (int i = 0; i < nodeCount; i++) {
-                invertLookUp[i] = nodes.get(i).item.externalId;
+                Node<TVector> node = nodes.get(i);
+                invertLookUp[i] = node == null ? -1 : node.item.externalId;
             }
             Kryo kryo = new Kryo();
             kryo.register(int[].class);
@@ -2,7 +2,16 @@ package ai.preferred.cerebro.hnsw;
 
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
-import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+import java.nio.IntBuffer;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntPredicate;
 
 /**
  * Primary class to conduct search on each segment, optimized to load only information necessary for searching.
@@ -13,56 +22,604 @@ import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
  *                 at the handler package.
  */
 public class LeafSegmentSearcher<TVector> extends LeafSegment<TVector> {
+    //number of ids tested to estimate how many nodes a filter accepts
+    private static final int FILTER_SAMPLE_SIZE = 256;
+    //number of queries of a batch an exact scan compares with each tile of vectors
+    private static final int EXACT_QUERY_TILE = 16;
+    //bytes of vectors in a tile of an exact scan, small enough to stay in the L2 cache
+    private static final int EXACT_TILE_BYTES = 1 << 17;
+
+    //runs the extra workers of a parallel search of this segment
+    private final Executor executor;
 
-    LeafSegmentSearcher(ParentHnsw parent, int numName, String idxDir) {
+    LeafSegmentSearcher(ParentHnsw parent, int numName, String idxDir, Executor executor) {
         super(parent, numName, idxDir, Mode.SEARCH);
+        this.executor = executor;
+    }
+
+    //drop the graph, vectors, codes and external ids, mapped files are
+    //unmapped once their buffers are collected. Searches are not allowed afterward
+    void close() {
+        graph = null;
+        externalIds = null;
+        vectors = null;
+        mappedVectors = null;
+        quantizer = null;
+    }
+
+    @Override
+    public Optional<TVector> getVector(int internalID) {
+        if (externalIds.get(internalID) < 0)
+            return Optional.empty();
+        if (mappedVectors != null)
+            return Optional.of(mappedVectors.get(internalID));
+        return Optional.of(handler.fromSlab(vectors, internalID * dimension, dimension));
+    }
+
+    //no Node is built in search mode, see getVector() instead
+    @Override
+    public Optional<Node<TVector>> getNode(int internalID) {
+        return Optional.empty();
+    }
+
+    @Override
+    protected float distance(TVector query, int internalId) {
+        if (mappedVectors != null)
+            return mappedVectors.distance(query, internalId);
+        return handler.distance(query, vectors, internalId * dimension);
+    }
+
+    @Override
+    protected float distance(TVector query, int internalId, float threshold) {
+        if (mappedVectors != null)
+            return mappedVectors.distance(query, internalId, threshold);
+        return handler.distanceBounded(query, vectors, internalId * dimension, threshold);
     }
 
     public TopDocs findNearest(TVector query, int k) {
+        return findNearest(query, new SearchParams(k));
+    }
 
-        if (entryPoint == null) {
-            return new TopDocs(0, null, Float.NaN);
+    /**
+     * Search this segment with settings other than the ones the index was saved with.
+     * @param query the query vector
+     * @param params the settings of the search, only its per segment k is returned
+     * @return the top results of this segment
+     */
+    public TopDocs findNearest(TVector query, SearchParams params) {
+        int[] ids = new int[params.segmentK()];
+        float[] scores = new float[ids.length];
+        int count = findNearest(handler.prepare(query), params, null, 0, ids, scores, 0);
+        ScoreDoc[] hits = new ScoreDoc[count];
+        for (int i = 0; i < count; i++) {
+            hits[i] = new ScoreDoc(ids[i], scores[i]);
         }
+        return new TopDocs(count, hits, count == 0 ? Float.NaN : hits[0].score);
+    }
+
+    /**
+     * Search this segment, writing the hits into primitive arrays so that
+     * searches of the whole index allocate no per-hit objects.
+     * @param query the query vector, already prepared by the handler
+     * @param params the settings of the search
+     * @param bound distance bound shared with the other segments searching
+     *              the same query, null to search this segment on its own
+     * @param slot slot of the query in the bound
+     * @param ids receives the external ids of the hits, best first
+     * @param scores receives the scores of the hits
+     * @param offset position in ids and scores of the first hit
+     * @return the number of hits written, at most the per segment k of params
+     */
+    int findNearest(TVector query, SearchParams params, PruningBound bound, int slot,
+                    int[] ids, float[] scores, int offset) {
+        if (graph.nodeCount == 0) {
+            return 0;
+        }
+
+        SearchScratch scratch = parent.borrowSearchScratch();
+        try {
+            return drain(searchTop(query, params, bound, slot, scratch), ids, scores, offset);
+        } finally {
+            parent.returnSearchScratch(scratch);
+        }
+    }
+
+    /**
+     * Exact search of a block of queries of a batch. Every query of a tile of
+     * queries is compared with a tile of vectors while these are in the cache,
+     * instead of streaming all the vectors of the segment from memory once per query.
+     * @param queries the query vectors, already prepared by the handler
+     * @param from index of the first query of the block
+     * @param to index past the last query of the block
+     * @param base index of the query whose hits go first in the output arrays
+     * @param params the settings of the search, only its per segment k and filter apply
+     * @param ids receives the external ids of the hits of query q from (q - base) times the per segment k
+     * @param scores receives the scores of the hits
+     * @param counts receives the number of hits of query q at q - base
+     */
+    void exactSearch(TVector[] queries, int from, int to, int base, SearchParams params,
+                     int[] ids, float[] scores, int[] counts) {
+        int k = params.segmentK();
+        int tileSize = Math.max(1, EXACT_TILE_BYTES / (dimension * handler.bytesPerElement()));
+        CandidateHeap[] heaps = new CandidateHeap[Math.max(0, Math.min(EXACT_QUERY_TILE, to - from))];
+        for (int i = 0; i < heaps.length; i++)
+            heaps[i] = new CandidateHeap(k + 1, true);
+
+        for (int queryStart = from; queryStart < to; queryStart += heaps.length) {
+            int queryEnd = Math.min(queryStart + heaps.length, to);
+            for (CandidateHeap heap : heaps)
+                heap.clear();
+            for (int tileStart = 0; tileStart < graph.nodeCount; tileStart += tileSize) {
+                int tileEnd = Math.min(tileStart + tileSize, graph.nodeCount);
+                for (int q = queryStart; q < queryEnd; q++)
+                    scanExact(queries[q], tileStart, tileEnd, k, params.filter, heaps[q - queryStart]);
+            }
+            for (int q = queryStart; q < queryEnd; q++)
+                counts[q - base] = drain(heaps[q - queryStart], ids, scores, (q - base) * k);
+        }
+    }
+
+    //empty a heap of the nearest nodes, farthest on top, into
+    //ids and scores from offset, best first
+    private int drain(CandidateHeap topCandidates, int[] ids, float[] scores, int offset) {
+        int count = topCandidates.size();
+        for (int i = count - 1; i >= 0; i--) {
+            ids[offset + i] = externalIds.get(topCandidates.topId());
+            scores[offset + i] = handler.score(topCandidates.topDistance());
+            topCandidates.pop();
+        }
+        return count;
+    }
+
+    /**
+     * Pass every node of this segment within a distance of the query to a collector.
+     * @param query the query vector
+     * @param maxDistance the radius of the search, nodes at this exact distance included
+     * @param collector receives the external id and score of every match
+     */
+    void findWithin(TVector query, float maxDistance, RadiusCollector collector) {
+        if (graph.nodeCount == 0) {
+            return;
+        }
+        SearchScratch scratch = parent.borrowSearchScratch();
+        try {
+            scratch.distanceBudget = Integer.MAX_VALUE;
+            int currObj = descend(query, scratch);
+            searchBaseLayerWithin(currObj, scratch.entryDistance, query, maxDistance, ef, collector, scratch);
+        } finally {
+            parent.returnSearchScratch(scratch);
+        }
+    }
+
+    //greedy descent to layer 0 then a search of the base layer, the
+    //returned heap of the scratch holds the k nearest nodes, farthest on top
+    private CandidateHeap searchTop(TVector query, SearchParams params, PruningBound bound, int slot,
+                                    SearchScratch scratch) {
+        int k = params.segmentK();
+        int listSize = params.segmentEf(ef);
+        //a graph search would reach about every node of a segment this small
+        if (params.exact || graph.nodeCount <= listSize)
+            return exactSearch(query, k, params.filter, scratch);
+        if (params.segmentParallelism > 1 && params.filter == null && bound == null
+                && params.maxDistanceComputations == Integer.MAX_VALUE)
+            return searchTopParallel(query, k, listSize, params.segmentParallelism, scratch);
+
+        scratch.distanceBudget = params.maxDistanceComputations - 1;
+        scratch.bound = bound;
+        scratch.boundSlot = slot;
+        scratch.filter = params.filter;
+
+        //a graph search visiting more nodes than the filter accepts
+        //costs more than computing the distance to each accepted node
+        boolean exactOnceSpent = false;
+        if (params.filter != null) {
+            int accepted = estimateAccepted(params.filter);
+            if (accepted <= listSize)
+                return exactSearch(query, k, params.filter, scratch);
+            if (accepted < params.maxDistanceComputations) {
+                scratch.distanceBudget = accepted - 1;
+                exactOnceSpent = true;
+            }
+        }
+
+        scratch.quantized = quantizer != null && params.quantizedTraversal;
+        if (scratch.quantized)
+            quantizer.prepare(query, scratch.quantizedQuery);
+
+        int currObj = descend(query, scratch);
+        CandidateHeap topCandidates = searchBaseLayer(currObj, scratch.entryDistance, query, listSize, scratch);
+        if (exactOnceSpent && scratch.distanceBudget < 0)
+            return exactSearch(query, k, params.filter, scratch);
+        if (scratch.quantized && params.rerank)
+            return rerank(query, k, scratch);
+
+        while (topCandidates.size() > k) {
+            topCandidates.pop();
+        }
+        return topCandidates;
+    }
+
+    //replace the quantized distances of the dynamic list by exact ones
+    //and keep the k nearest, the candidate heap is free by now and
+    //serves to sort them
+    private CandidateHeap rerank(TVector query, int k, SearchScratch scratch) {
+        CandidateHeap topCandidates = scratch.results;
+        CandidateHeap exact = scratch.candidates;
+        exact.clear();
+        while (!topCandidates.isEmpty()) {
+            int id = topCandidates.pop();
+            exact.push(id, distance(query, id));
+        }
+        while (topCandidates.size() < k && !exact.isEmpty()) {
+            float distance = exact.topDistance();
+            topCandidates.push(exact.pop(), distance);
+        }
+        return topCandidates;
+    }
+
+    //distance used to walk the graph, from the quantized vectors
+    //if the search prepared a quantized query in the scratch
+    private float traversalDistance(TVector query, int internalId, SearchScratch scratch) {
+        if (scratch.quantized)
+            return quantizer.distance(scratch.quantizedQuery, internalId);
+        return distance(query, internalId);
+    }
+
+    //same as traversalDistance() but may stop once the distance is known to be
+    //above the threshold, quantized distances are cheap enough to always finish
+    private float traversalDistance(TVector query, int internalId, float threshold, SearchScratch scratch) {
+        if (scratch.quantized)
+            return quantizer.distance(scratch.quantizedQuery, internalId);
+        return distance(query, internalId, threshold);
+    }
+
+    //same as searchTop() with the base layer searched by several workers, each
+    //starting from a different node near the end of the greedy descent
+    private CandidateHeap searchTopParallel(TVector query, int k, int listSize, int parallelism,
+                                            SearchScratch scratch) {
+        scratch.distanceBudget = Integer.MAX_VALUE;
+        int currObj = descend(query, scratch);
+
+        int layer = Math.min(1, graph.entryLevel);
+        IntBuffer links = graph.links(layer);
+        int[] entries = new int[parallelism];
+        entries[0] = currObj;
+        int entryCount = 1;
+        int end = graph.end(currObj, layer);
+        for (int i = graph.begin(currObj, layer); i < end && entryCount < parallelism; i++) {
+            entries[entryCount++] = links.get(i);
+        }
+
+        final int workers = entryCount;
+        final SharedVisitedSet visited = scratch.sharedVisited();
+        final PruningBound bound = scratch.sharedBound();
+        //the first worker goes on with the scratch of the descent, the others'
+        //are borrowed here so that their heaps can be merged before going back
+        final SearchScratch[] workerScratches = new SearchScratch[workers];
+        workerScratches[0] = scratch.reset();
+        for (int w = 1; w < workers; w++)
+            workerScratches[w] = parent.borrowSearchScratch();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(workers);
+
+        //workers no pool thread has picked up yet are run by the calling
+        //thread, so waiting on a saturated executor can not deadlock
+        Runnable worker = () -> {
+            int w;
+            while ((w = next.getAndIncrement()) < workers) {
+                try {
+                    searchBaseLayerShared(entries[w], query, listSize, visited, bound, workerScratches[w]);
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        InterruptedException interrupted = null;
+        try {
+            for (int i = 1; i < workers; i++) {
+                try {
+                    executor.execute(worker);
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+            worker.run();
+            //the visited set and bound belong to the caller's scratch, which goes
+            //back to the pool with the query: no worker may outlive the wait, so
+            //on interrupt the workers not started are skipped, the others waited for
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    if (interrupted == null) {
+                        for (int w = next.getAndSet(workers); w < workers; w++)
+                            done.countDown();
+                    }
+                    interrupted = e;
+                }
+            }
+            if (interrupted != null) {
+                Thread.currentThread().interrupt();
+                throw new ThreadInterruptedException(interrupted);
+            }
 
-        Node<TVector> entryPointCopy = entryPoint;
+            CandidateHeap topCandidates = scratch.results;
+            while (topCandidates.size() > k)
+                topCandidates.pop();
+            if (failure.get() != null)
+                throw failure.get();
+            for (int w = 1; w < workers; w++) {
+                CandidateHeap found = workerScratches[w].results;
+                for (; !found.isEmpty(); found.pop()) {
+                    if (topCandidates.size() < k)
+                        topCandidates.push(found.topId(), found.topDistance());
+                    else if (topCandidates.topDistance() > found.topDistance())
+                        topCandidates.replaceTop(found.topId(), found.topDistance());
+                }
+            }
+            return topCandidates;
+        } finally {
+            for (int w = 1; w < workers; w++)
+                parent.returnSearchScratch(workerScratches[w]);
+        }
+    }
 
-        Node<TVector> currObj = entryPointCopy;
+    //greedy descent from the entry node to the node of layer 1 nearest to the
+    //query, returns its id and leaves its distance in the scratch
+    private int descend(TVector query, SearchScratch scratch) {
+        int currObj = graph.entryId;
 
-        double curDist = handler.distance(query, currObj.vector());
+        float curDist = traversalDistance(query, currObj, scratch);
 
-        for (int activeLevel = entryPointCopy.maxLevel(); activeLevel > 0; activeLevel--) {
+        for (int activeLevel = graph.entryLevel; activeLevel > 0; activeLevel--) {
+            IntBuffer links = graph.links(activeLevel);
 
             boolean changed = true;
             while (changed){
                 changed = false;
-                IntArrayList candidateConnections = currObj.outConns[activeLevel];
+                int end = graph.end(currObj, activeLevel);
+                for (int i = graph.begin(currObj, activeLevel); i < end; i++) {
 
-                for (int i = 0; i < candidateConnections.size(); i++) {
+                    if (--scratch.distanceBudget < 0)
+                        break;
 
-                    int candidateId = candidateConnections.get(i);
+                    int candidateId = links.get(i);
 
-                    double candidateDistance = handler.distance(query, nodes[candidateId].vector());
+                    float candidateDistance = traversalDistance(query, candidateId, curDist, scratch);
                     if (candidateDistance < curDist) {
                         curDist = candidateDistance;
-                        currObj = nodes[candidateId];
+                        currObj = candidateId;
                         changed = true;
                     }
                 }
             }
         }
 
-        BoundedMaxHeap topCandidates = searchLayer(currObj, query, Math.max(ef, k), 0);
+        scratch.entryDistance = curDist;
+        return currObj;
+    }
 
-        while (topCandidates.size() > k) {
-            topCandidates.pop();
+    //same as searchLayer() at layer 0 but walking the packed graph
+    //with the primitive heaps of the scratch, nothing is allocated.
+    //Stops early once the distance budget of the scratch is spent, and
+    //stops expanding candidates beyond the shared bound if there is one.
+    //With a filter only accepted nodes enter the results but every node
+    //is traversed, and the search goes on until k nodes are accepted
+    private CandidateHeap searchBaseLayer(int entryId, float distance, TVector destination, int k, SearchScratch scratch){
+        VisitedSet visitedSet = scratch.visited;
+        CandidateHeap topCandidates = scratch.results;
+        CandidateHeap checkNeighborSet = scratch.candidates;
+        PruningBound bound = scratch.bound;
+        IntPredicate filter = scratch.filter;
+
+        checkNeighborSet.push(entryId, distance);
+        visitedSet.flipTrue(entryId);
+
+        if (filter == null || filter.test(externalIds.get(entryId)))
+            topCandidates.push(entryId, distance);
+        float lowerBound = filter == null ? distance : Float.POSITIVE_INFINITY;
+        IntBuffer links = graph.links(0);
+
+        while (!checkNeighborSet.isEmpty()) {
+            //the bound only applies once this segment has converged to a full
+            //list, before that it still has to route towards its nearest region
+            float limit = bound == null || topCandidates.size() < k ? lowerBound
+                    : Math.min(lowerBound, bound.get(scratch.boundSlot));
+            if (checkNeighborSet.topDistance() > limit) {
+                break;
+            }
+            int nodeWithNeighbors = checkNeighborSet.pop();
+
+            int end = graph.end(nodeWithNeighbors, 0);
+            for (int i = graph.begin(nodeWithNeighbors, 0); i < end; i++) {
+
+                int candidateId = links.get(i);
+
+                if (!visitedSet.isTrue(candidateId)) {
+
+                    if (--scratch.distanceBudget < 0)
+                        return topCandidates;
+
+                    visitedSet.flipTrue(candidateId);
+
+                    //once the list is full only nodes nearer than its top get in
+                    float candidateDistance = topCandidates.size() < k
+                            ? traversalDistance(destination, candidateId, scratch)
+                            : traversalDistance(destination, candidateId, topCandidates.topDistance(), scratch);
+
+                    if (topCandidates.size() < k || topCandidates.topDistance() > candidateDistance) {
+
+                        checkNeighborSet.push(candidateId, candidateDistance);
+                        if (filter != null && !filter.test(externalIds.get(candidateId)))
+                            continue;
+
+                        if (topCandidates.size() == k)
+                            topCandidates.replaceTop(candidateId, candidateDistance);
+                        else
+                            topCandidates.push(candidateId, candidateDistance);
+
+                        if (filter == null || topCandidates.size() == k)
+                            lowerBound = topCandidates.topDistance();
+                        if (bound != null && topCandidates.size() == k)
+                            bound.offer(scratch.boundSlot, lowerBound);
+                    }
+                }
+            }
         }
-        ScoreDoc[] hits = new ScoreDoc[topCandidates.size()];
-        for (int i = topCandidates.size() - 1; i >= 0; i--) {
-            Candidate h = topCandidates.pop();
-            hits[i] = new ScoreDoc(nodes[h.nodeId].item.externalId, (float) (1 - h.distance));
+        return topCandidates;
+    }
+
+    //base layer search of one worker of a parallel search: a node is claimed
+    //by a single worker which alone computes its distance, and the workers
+    //share the bound of their full dynamic lists as in a PruningBound
+    private CandidateHeap searchBaseLayerShared(int entryId, TVector destination, int k,
+                                                SharedVisitedSet visited, PruningBound bound, SearchScratch scratch){
+        CandidateHeap topCandidates = scratch.results;
+        CandidateHeap checkNeighborSet = scratch.candidates;
+        if (!visited.claim(entryId))
+            return topCandidates;
+
+        float distance = distance(destination, entryId);
+        topCandidates.push(entryId, distance);
+        checkNeighborSet.push(entryId, distance);
+
+        float lowerBound = distance;
+        IntBuffer links = graph.links(0);
+
+        while (!checkNeighborSet.isEmpty()) {
+            float limit = topCandidates.size() < k ? lowerBound : Math.min(lowerBound, bound.get(0));
+            if (checkNeighborSet.topDistance() > limit) {
+                break;
+            }
+            int nodeWithNeighbors = checkNeighborSet.pop();
+
+            int end = graph.end(nodeWithNeighbors, 0);
+            for (int i = graph.begin(nodeWithNeighbors, 0); i < end; i++) {
+
+                int candidateId = links.get(i);
+
+                if (visited.claim(candidateId)) {
+
+                    float candidateDistance = topCandidates.size() < k
+                            ? distance(destination, candidateId)
+                            : distance(destination, candidateId, topCandidates.topDistance());
+
+                    if (topCandidates.size() < k || topCandidates.topDistance() > candidateDistance) {
+
+                        checkNeighborSet.push(candidateId, candidateDistance);
+                        if (topCandidates.size() == k)
+                            topCandidates.replaceTop(candidateId, candidateDistance);
+                        else
+                            topCandidates.push(candidateId, candidateDistance);
+
+                        lowerBound = topCandidates.topDistance();
+                        if (topCandidates.size() == k)
+                            bound.offer(0, lowerBound);
+                    }
+                }
+            }
+        }
+        return topCandidates;
+    }
+
+    //same as searchBaseLayer() with a dynamic list of size ef to route
+    //towards the query, except that every node within the radius is both
+    //collected and expanded, so the search floods the whole ball
+    private void searchBaseLayerWithin(int entryId, float distance, TVector destination, float maxDistance,
+                                       int ef, RadiusCollector collector, SearchScratch scratch){
+        VisitedSet visitedSet = scratch.visited;
+        CandidateHeap topCandidates = scratch.results;
+        CandidateHeap checkNeighborSet = scratch.candidates;
+
+        topCandidates.push(entryId, distance);
+        checkNeighborSet.push(entryId, distance);
+        visitedSet.flipTrue(entryId);
+        if (distance <= maxDistance)
+            collector.collect(externalIds.get(entryId), handler.score(distance));
+
+        float lowerBound = distance;
+        IntBuffer links = graph.links(0);
+
+        while (!checkNeighborSet.isEmpty()) {
+            if (checkNeighborSet.topDistance() > Math.max(lowerBound, maxDistance)) {
+                break;
+            }
+            int nodeWithNeighbors = checkNeighborSet.pop();
+
+            int end = graph.end(nodeWithNeighbors, 0);
+            for (int i = graph.begin(nodeWithNeighbors, 0); i < end; i++) {
+
+                int candidateId = links.get(i);
+
+                if (!visitedSet.isTrue(candidateId)) {
+
+                    visitedSet.flipTrue(candidateId);
+
+                    float candidateDistance = distance(destination, candidateId);
+                    boolean within = candidateDistance <= maxDistance;
+                    if (within)
+                        collector.collect(externalIds.get(candidateId), handler.score(candidateDistance));
+
+                    if (within || topCandidates.size() < ef || topCandidates.topDistance() > candidateDistance) {
+
+                        checkNeighborSet.push(candidateId, candidateDistance);
+                        if (topCandidates.size() < ef)
+                            topCandidates.push(candidateId, candidateDistance);
+                        else if (topCandidates.topDistance() > candidateDistance)
+                            topCandidates.replaceTop(candidateId, candidateDistance);
+
+                        lowerBound = topCandidates.topDistance();
+                    }
+                }
+            }
+        }
+    }
+
+    //estimate the number of nodes of this segment a filter accepts
+    //by testing evenly spaced ids
+    private int estimateAccepted(IntPredicate filter) {
+        int step = Math.max(1, graph.nodeCount / FILTER_SAMPLE_SIZE);
+        int sampled = 0;
+        int accepted = 0;
+        for (int id = 0; id < graph.nodeCount; id += step) {
+            int externalId = externalIds.get(id);
+            sampled++;
+            if (externalId >= 0 && filter.test(externalId))
+                accepted++;
         }
+        return (int) ((long) accepted * graph.nodeCount / sampled);
+    }
 
+    //compute the distance to every accepted node of this segment, used when
+    //a filter accepts too few nodes for the graph to lead to them efficiently,
+    //when the segment is tiny or when exact results are asked for
+    private CandidateHeap exactSearch(TVector query, int k, IntPredicate filter, SearchScratch scratch) {
+        CandidateHeap topCandidates = scratch.results;
+        topCandidates.clear();
+        scanExact(query, 0, graph.nodeCount, k, filter, topCandidates);
+        return topCandidates;
+    }
 
-        return new TopDocs(topCandidates.size(), hits, hits[0].score);
+    //offer the nodes of ids [from, to) accepted by the filter, null for no
+    //filter, to a heap of the k nearest. Once the heap is full a distance is
+    //abandoned as soon as it exceeds the farthest node kept
+    private void scanExact(TVector query, int from, int to, int k, IntPredicate filter,
+                           CandidateHeap topCandidates) {
+        for (int id = from; id < to; id++) {
+            int externalId = externalIds.get(id);
+            if (externalId < 0 || (filter != null && !filter.test(externalId)))
+                continue;
+            if (topCandidates.size() < k) {
+                topCandidates.push(id, distance(query, id));
+                continue;
+            }
+            float distance = distance(query, id, topCandidates.topDistance());
+            if (distance < topCandidates.topDistance())
+                topCandidates.replaceTop(id, distance);
+        }
     }
 }
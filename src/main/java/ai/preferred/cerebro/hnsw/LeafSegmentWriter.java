@@ -6,8 +6,14 @@ import org.eclipse.collections.api.list.primitive.MutableIntList;
 import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 import org.eclipse.collections.impl.stack.mutable.primitive.IntArrayStack;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 /**
@@ -88,7 +94,14 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
         return true;
     }
 
+    //the item as it is stored, its vector transformed by the handler
+    protected Item<TVector> prepare(Item<TVector> item) {
+        TVector vector = handler.prepare(item.vector);
+        return vector == item.vector ? item : new Item<>(item.externalId, vector);
+    }
+
     public boolean add(Item<TVector> item) {
+        item = prepare(item);
         //System.out.println(item.externalId);
         //globalID is internalID + baseID of the segment
         Integer globalId = lookup.get(item.externalId);
@@ -157,7 +170,7 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
             //if no layer added
             if (newNode.maxLevel() < entryPoint.maxLevel()) {
 
-                double curDist = handler.distance(newNode.vector(), curNode.vector());
+                float curDist = handler.distance(newNode.vector(), curNode.vector());
                 //sequentially zoom in until reach the layer next to
                 // the highest layer that the new node has to be inserted
                 for (int curLevel = entryPoint.maxLevel(); curLevel > newNode.maxLevel(); curLevel--) {
@@ -172,7 +185,7 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
 
                             Node<TVector> candidateNode = nodes[candidateId];
 
-                            double candidateDistance = handler.distance(newNode.vector(), candidateNode.vector());
+                            float candidateDistance = handler.distance(newNode.vector(), candidateNode.vector());
 
                             //updating the starting node to be used at lower level
                             if (candidateDistance < curDist) {
@@ -201,7 +214,6 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
             // this is thread safe because we get the global lock when we add a level
             this.entryPoint = newNode;
         }
-
         return true;
     }
 
@@ -247,12 +259,12 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
             // then pick out the top limited number allowed, the
             // new conn may be left out or not.
             else {
-                double dMax = handler.distance(newNodeVector, neighbourNode.vector());
+                float dMax = handler.distance(newNodeVector, neighbourNode.vector());
                 BoundedMaxHeap candidates = new BoundedMaxHeap(bestN + 1, ()-> null);
-                candidates.add(new Candidate(newNodeId, dMax, distanceComparator));
+                candidates.add(new Candidate(newNodeId, dMax));
                 outNeighbourConnsAtLevel.forEach(id -> {
-                    double dist = handler.distance(neighbourVector, nodes[id].vector());
-                    candidates.add(new Candidate(id, dist, distanceComparator));
+                    float dist = handler.distance(neighbourVector, nodes[id].vector());
+                    candidates.add(new Candidate(id, dist));
                 });
 
                 if (removeEnabled) {
@@ -279,12 +291,12 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
                 /* In case every breaks or accuracy plummets, uncomment this section
                 and delete everything above up till the start of the else clause
 
-                double dMax = handler.distance(newNodeVector, neighbourNode.vector());
+                float dMax = handler.distance(newNodeVector, neighbourNode.vector());
                 BoundedMaxHeap candidates = new BoundedMaxHeap(bestN + 1, ()-> null);
-                candidates.add(new Candidate(newNodeId, dMax, distanceComparator));
+                candidates.add(new Candidate(newNodeId, dMax));
                 outNeighbourConnsAtLevel.forEach(id -> {
-                    double dist = handler.distance(neighbourVector, nodes[id].vector());
-                    candidates.add(new Candidate(id, dist, distanceComparator));
+                    float dist = handler.distance(neighbourVector, nodes[id].vector());
+                    candidates.add(new Candidate(id, dist));
                 });
 
                 MutableIntList prunedConnections = removeEnabled ? new IntArrayList() : null;
@@ -338,14 +350,16 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
             if (returnList.size() >= m) {
                 good = false;
             } else {
-                double distToQuery = candidate.distance;
+                float distToQuery = candidate.distance;
 
                 good = true;
                 for (Candidate chosen : returnList) {
 
-                    double curdist = handler.distance(
+                    //only whether it is nearer than the query matters
+                    float curdist = handler.distanceBounded(
                             nodes[chosen.nodeId].vector(),
-                            nodes[candidate.nodeId].vector()
+                            nodes[candidate.nodeId].vector(),
+                            distToQuery
                     );
 
                     if (curdist < distToQuery) {
@@ -366,22 +380,181 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
         return returnList.iterator();
     }
 
+    protected void setNode(int internalID, Node<TVector> node) {
+        nodes[internalID] = node;
+    }
+
+    /**
+     * Renumber the nodes in breadth first order of the base layer starting
+     * from the entry point, so that nodes close in the graph get close ids
+     * and their vectors and connections are stored close together once saved.
+     * Ids freed by removals are compacted away and the global lookup is updated.
+     * Must not run concurrently with insertions or removals.
+     */
+    protected void reorder() {
+        synchronized (this) {
+            if (entryPoint == null)
+                return;
+            //order[newId] = oldId, newIds[oldId] = newId or -1 if not placed yet
+            int[] order = new int[nodeCount];
+            int[] newIds = new int[nodeCount];
+            Arrays.fill(newIds, -1);
+            int count = 0;
+            int head = 0;
+            //nodes unreachable from the entry point start a traversal of their own
+            for (int start = -1; start < nodeCount; start++) {
+                int root = start < 0 ? entryPoint.internalId : start;
+                if (newIds[root] >= 0 || !getNode(root).isPresent())
+                    continue;
+                newIds[root] = count;
+                order[count++] = root;
+                while (head < count) {
+                    IntArrayList conns = getNode(order[head++]).get().outConns[0];
+                    for (int i = 0; i < conns.size(); i++) {
+                        int neighbourId = conns.get(i);
+                        if (newIds[neighbourId] < 0 && getNode(neighbourId).isPresent()) {
+                            newIds[neighbourId] = count;
+                            order[count++] = neighbourId;
+                        }
+                    }
+                }
+            }
+
+            @SuppressWarnings("unchecked")
+            Node<TVector>[] renumbered = (Node<TVector>[]) new Node<?>[count];
+            for (int i = 0; i < count; i++) {
+                Node<TVector> node = getNode(order[i]).get();
+                renumbered[i] = new Node<>(i, renumber(node.outConns, newIds),
+                        renumber(node.inConns, newIds), node.item);
+                lookup.put(node.externalID(), baseID + i);
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                setNode(i, i < count ? renumbered[i] : null);
+            }
+            entryPoint = renumbered[newIds[entryPoint.internalId]];
+            nodeCount = count;
+            freedIds.clear();
+        }
+    }
+
+    private static IntArrayList[] renumber(IntArrayList[] conns, int[] newIds) {
+        if (conns == null)
+            return null;
+        IntArrayList[] renumbered = new IntArrayList[conns.length];
+        for (int level = 0; level < conns.length; level++) {
+            renumbered[level] = new IntArrayList(conns[level].size());
+            for (int i = 0; i < conns[level].size(); i++) {
+                int id = newIds[conns[level].get(i)];
+                if (id >= 0)
+                    renumbered[level].add(id);
+            }
+        }
+        return renumbered;
+    }
+
     public void save(String dir){
         saveConfig(dir);
         saveVecs(dir);
         saveOutConns(dir);
         saveInvertLookUp(dir);
+        saveMapped(dir);
+        if(scalarQuantization)
+            saveQuantized(dir);
+        if(productQuantization > 0)
+            saveProductQuantized(dir);
         if(removeEnabled){
             saveDeletedID(dir);
             saveInConns(dir);
         }
     }
 
+    /**
+     * Write the binary files that a {@link LeafSegmentSearcher} maps into
+     * memory instead of deserializing the kryo files, see {@link SegmentGraph}
+     * and {@link SegmentVectors} for their layout.
+     * </br>
+     * The files are written aside and renamed once all of them are complete,
+     * the invert file last since the searcher only maps the segment when all
+     * three exist. If writing fails the mapped files of the segment are
+     * deleted, so that the searcher falls back to the kryo files rather than
+     * mapping truncated or stale ones.
+     * @param dirPath
+     */
+    protected void saveMapped(String dirPath){
+        synchronized (this){
+            Node<TVector> entry = entryPoint;
+            File[] targets = {new File(dirPath + LOCAL_GRAPH_MAPPED),
+                    new File(dirPath + LOCAL_VECS_MAPPED),
+                    new File(dirPath + LOCAL_INVERT_MAPPED)};
+            File[] temps = new File[targets.length];
+            for (int i = 0; i < targets.length; i++)
+                temps[i] = new File(targets[i].getPath() + ".tmp");
+            try {
+                SegmentGraph.write(temps[0],
+                        i -> getNode(i).orElse(null),
+                        nodeCount, entry.internalId, entry.maxLevel(), maxM0);
+                SegmentVectors.write(temps[1], handler,
+                        i -> getNode(i).map(Node::vector).orElse(null),
+                        nodeCount, handler.dimension(entry.vector()));
+                try (RandomAccessFile raf = new RandomAccessFile(temps[2], "rw");
+                     FileChannel channel = raf.getChannel()) {
+                    raf.setLength(0);
+                    SegmentGraph.IntWriter out = new SegmentGraph.IntWriter(channel);
+                    for (int i = 0; i < nodeCount; i++) {
+                        out.put(getNode(i).map(Node::externalID).orElse(-1));
+                    }
+                    out.flush();
+                }
+                Files.deleteIfExists(targets[2].toPath());
+                for (int i = 0; i < targets.length; i++)
+                    Files.move(temps[i].toPath(), targets[i].toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (int i = 0; i < targets.length; i++) {
+                    temps[i].delete();
+                    targets[i].delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the quantized copy of the vectors, see {@link ScalarQuantizer}.
+     * @param dirPath
+     */
+    protected void saveQuantized(String dirPath){
+        synchronized (this){
+            try {
+                ScalarQuantizer.write(new File(dirPath + LOCAL_QUANTIZED), handler,
+                        i -> getNode(i).map(Node::vector).orElse(null),
+                        nodeCount, handler.dimension(entryPoint.vector()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Train the codebooks of the segment and write its codes, see {@link ProductQuantizer}.
+     * @param dirPath
+     */
+    protected void saveProductQuantized(String dirPath){
+        synchronized (this){
+            try {
+                ProductQuantizer.write(new File(dirPath + LOCAL_PRODUCT_QUANTIZED), handler,
+                        i -> getNode(i).map(Node::vector).orElse(null),
+                        nodeCount, handler.dimension(entryPoint.vector()), productQuantization);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     protected void saveInvertLookUp(String dirPath){
         synchronized (nodes){
             int[] invertLookUp = new int[nodeCount];
             for (int i = 0; i < nodeCount; i++) {
-                invertLookUp[i] = nodes[i].item.externalId;
+                invertLookUp[i] = nodes[i] == null ? -1 : nodes[i].item.externalId;
             }
             Kryo kryo = new Kryo();
             kryo.register(int[].class);
@@ -0,0 +1,89 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed size codes of the vectors of a leaf segment served straight from a
+ * memory-mapped file, the codes of internal id i starting at i * codeBytes.
+ * As in {@link SegmentVectors} the codes are mapped in chunks of a whole
+ * number of vectors since a single mapping can not exceed 2GB.
+ */
+final class MappedCodes {
+    private final int codeBytes;
+    private final int codesPerChunk;
+    private final ByteBuffer[] chunks;
+
+    private MappedCodes(int codeBytes, int codesPerChunk, ByteBuffer[] chunks) {
+        this.codeBytes = codeBytes;
+        this.codesPerChunk = codesPerChunk;
+        this.chunks = chunks;
+    }
+
+    /**
+     * @return the chunk holding the codes of an internal id
+     */
+    ByteBuffer chunk(int internalId) {
+        return chunks[internalId / codesPerChunk];
+    }
+
+    /**
+     * @return the position of the codes of an internal id in its {@link #chunk(int)}
+     */
+    int offset(int internalId) {
+        return (internalId % codesPerChunk) * codeBytes;
+    }
+
+    /**
+     * Map the codes of a segment, they stay mapped once the channel is closed.
+     * @param channel the file holding the codes
+     * @param start position in bytes of the codes of the first vector
+     * @param count number of vectors
+     * @param codeBytes bytes of the codes of each vector
+     * @return the mapped codes
+     * @throws IOException
+     */
+    static MappedCodes map(FileChannel channel, long start, int count, int codeBytes) throws IOException {
+        int codesPerChunk = Math.max(1, Integer.MAX_VALUE / Math.max(1, codeBytes));
+        ByteBuffer[] chunks = new ByteBuffer[Math.max(1, (count + codesPerChunk - 1) / codesPerChunk)];
+        for (int i = 0; i < chunks.length; i++) {
+            long first = (long) i * codesPerChunk;
+            long size = Math.min(codesPerChunk, count - first) * codeBytes;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + first * codeBytes, Math.max(0, size))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new MappedCodes(codeBytes, codesPerChunk, chunks);
+    }
+
+    /**
+     * Read little endian floats from a file into the heap.
+     * @param channel the file to read
+     * @param position position in bytes of the first float
+     * @param count number of floats
+     * @return the floats read
+     * @throws IOException if the file ends before the last float
+     */
+    static float[] readFloats(FileChannel channel, long position, int count) throws IOException {
+        float[] floats = new float[count];
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        int read = 0;
+        while (read < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), (long) (count - read) * Float.BYTES));
+            while (buffer.hasRemaining()) {
+                int bytes = channel.read(buffer, position);
+                if (bytes < 0)
+                    throw new EOFException("File ends before float " + (read + buffer.position() / Float.BYTES));
+                position += bytes;
+            }
+            buffer.flip();
+            int floatCount = buffer.remaining() / Float.BYTES;
+            buffer.asFloatBuffer().get(floats, read, floatCount);
+            read += floatCount;
+        }
+        return floats;
+    }
+}
@@ -18,7 +18,11 @@ abstract public class ParentHnsw<TVector> {
     protected HnswConfiguration configuration;
     protected int nleaves;
     protected ConcurrentHashMap<Integer, Integer> lookup;
-    protected GenericObjectPool<BitSet> visitedBitSetPool;
+    protected GenericObjectPool<VisitedSet> visitedSetPool;
+    //node count of the largest leaf, bounds the ids a search can visit
+    protected int maxLeafNodeCount;
+    //working memory of the searches, created by searchers once maxLeafNodeCount is known
+    protected GenericObjectPool<SearchScratch> searchScratchPool;
     protected LeafSegment<TVector>[] leaves;
 
     ParentHnsw(){
@@ -26,6 +30,13 @@ abstract public class ParentHnsw<TVector> {
 
     //Load Up configuration and lookup table
     ParentHnsw(String dir){
+        this(dir, true);
+    }
+
+    //Load Up configuration, and the lookup table unless only searching:
+    //searchers translate ids with the invert files of the leaves, so the
+    //table would only grow their startup time and heap with the node count
+    ParentHnsw(String dir, boolean loadLookup){
         idxDir = dir;
         Kryo kryo = new Kryo();
         kryo.register(Integer.class);
@@ -64,7 +75,14 @@ abstract public class ParentHnsw<TVector> {
         configuration.setLowMemoryMode(kryo.readObject(input, boolean.class));
         configuration.setMaxItemLeaf(kryo.readObject(input, int.class));
         nleaves = kryo.readObject(input, int.class);
+        //absent from indexes saved before quantization was supported
+        if (!input.end())
+            configuration.setScalarQuantization(kryo.readObject(input, boolean.class));
+        if (!input.end())
+            configuration.setProductQuantization(kryo.readObject(input, int.class));
         input.close();
+        if (!loadLookup)
+            return;
         //Load up lookup table
         try {
             input = new Input(new FileInputStream(idxDir + globalLookupFileName));
@@ -78,15 +96,24 @@ abstract public class ParentHnsw<TVector> {
     public HnswConfiguration getConfiguration() {
         return configuration;
     }
+    //null for searchers, which do not load it
     public ConcurrentHashMap<Integer, Integer> getLookup(){
         return lookup;
     }
-    public BitSet getBitsetFromPool(){
-        return visitedBitSetPool.borrowObject();
+    public VisitedSet getVisitedSetFromPool(){
+        return visitedSetPool.borrowObject();
+    }
+
+    public void returnVisitedSetToPool(VisitedSet visitedSet){
+        visitedSetPool.returnObject(visitedSet);
+    }
+    //scratch for one search, to be given back with returnSearchScratch()
+    SearchScratch borrowSearchScratch(){
+        return searchScratchPool.borrowObject().reset();
     }
 
-    public void returnBitsetToPool(BitSet bitSet){
-        visitedBitSetPool.returnObject(bitSet);
+    void returnSearchScratch(SearchScratch scratch){
+        searchScratchPool.returnObject(scratch);
     }
     public Node getNodeGlobally(int globalID){
         int leafNum = globalID / configuration.maxItemLeaf;
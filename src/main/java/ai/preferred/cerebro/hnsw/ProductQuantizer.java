@@ -0,0 +1,292 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.QuantizableHandler;
+import ai.preferred.cerebro.handler.VecHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * Product quantized copy of the vectors of a leaf segment, one byte per
+ * subspace instead of one per element as in {@link ScalarQuantizer}.
+ * </br>
+ * The dimensions are split into contiguous subspaces, each with a codebook
+ * of up to 256 centroids trained by k-means over a sample of the segment's
+ * vectors. A vector is stored as the index of its nearest centroid in every
+ * subspace. For each query a table of its dot product with every centroid
+ * is computed once per segment, so that the distance to a node is a sum of
+ * table lookups over its codes, see {@link #prepare(Object, QuantizedQuery)}.
+ * </br>
+ * File layout (little endian): a header of {@link #HEADER_BYTES} bytes, the
+ * centroids of every subspace as floats, subspace after subspace, the squared
+ * norm of every decoded vector as floats, then the codes of the vectors back
+ * to back.
+ *
+ * @param <TVector> the type of vector supported
+ */
+final class ProductQuantizer<TVector> implements Quantizer<TVector> {
+    static final int MAGIC = 0x48505130; //HPQ0
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    private static final int MAX_CENTROIDS = 256;
+    //number of vectors the codebooks are trained on, at most
+    private static final int TRAINING_SAMPLE_SIZE = 10_000;
+    private static final int TRAINING_ITERATIONS = 12;
+
+    final int count;
+    final int dimension;
+    final int subspaces;
+    final int centroidsPerSubspace;
+
+    private final QuantizableHandler<TVector> handler;
+    //centroid c of subspace s starts at start(s) * centroidsPerSubspace + c * width(s)
+    private final float[] centroids;
+    private final float[] squaredNorms;
+    private final MappedCodes codes;
+
+    private ProductQuantizer(QuantizableHandler<TVector> handler, int count, int dimension, int subspaces,
+                             int centroidsPerSubspace, float[] centroids, float[] squaredNorms, MappedCodes codes) {
+        this.handler = handler;
+        this.count = count;
+        this.dimension = dimension;
+        this.subspaces = subspaces;
+        this.centroidsPerSubspace = centroidsPerSubspace;
+        this.centroids = centroids;
+        this.squaredNorms = squaredNorms;
+        this.codes = codes;
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    @Override
+    public void prepare(TVector query, QuantizedQuery prepared) {
+        float[] table = prepared.table(subspaces * centroidsPerSubspace);
+        Arrays.fill(table, 0);
+        float squaredNorm = 0;
+        for (int s = 0; s < subspaces; s++) {
+            int start = start(s, dimension, subspaces);
+            int width = start(s + 1, dimension, subspaces) - start;
+            int row = s * centroidsPerSubspace;
+            for (int i = 0; i < width; i++) {
+                float value = (float) handler.get(query, start + i);
+                squaredNorm += value * value;
+                for (int c = 0, centroid = start * centroidsPerSubspace + i; c < centroidsPerSubspace; c++, centroid += width) {
+                    table[row + c] += value * centroids[centroid];
+                }
+            }
+        }
+        prepared.offset = 0;
+        prepared.squaredNorm = squaredNorm;
+    }
+
+    @Override
+    public float distance(QuantizedQuery query, int internalId) {
+        float[] table = query.table;
+        ByteBuffer chunk = codes.chunk(internalId);
+        int base = codes.offset(internalId);
+        float dot = 0;
+        for (int s = 0, row = 0; s < subspaces; s++, row += centroidsPerSubspace) {
+            dot += table[row + (chunk.get(base + s) & 0xff)];
+        }
+        return handler.distance(dot, query.squaredNorm, squaredNorms[internalId]);
+    }
+
+    //first dimension of a subspace, the remainder of the
+    //division is spread over the first subspaces
+    private static int start(int subspace, int dimension, int subspaces) {
+        return (int) ((long) subspace * dimension / subspaces);
+    }
+
+    /**
+     * Train the codebooks on a sample of the vectors of a segment then write
+     * the codes of all of them in the layout described at {@link ProductQuantizer}.
+     * @param file the file to write
+     * @param handler the handler of the vectors
+     * @param vectors accessor returning the vector of an internal id, null for deleted ids
+     * @param count number of ids in use
+     * @param dimension number of elements of each vector
+     * @param subspaces number of subspaces, each coded on one byte
+     * @throws IOException
+     */
+    static <TVector> void write(File file, VecHandler<TVector> handler, IntFunction<TVector> vectors,
+                                int count, int dimension, int subspaces) throws IOException {
+        if (subspaces <= 0 || subspaces > dimension)
+            throw new IllegalArgumentException("Number of subspaces must be between 1 and the dimension");
+        float[][] sample = sample(handler, vectors, count, dimension);
+        int centroidsPerSubspace = Math.max(1, Math.min(MAX_CENTROIDS, sample.length));
+        float[] centroids = new float[dimension * centroidsPerSubspace];
+        for (int s = 0; s < subspaces; s++) {
+            int start = start(s, dimension, subspaces);
+            int width = start(s + 1, dimension, subspaces) - start;
+            kMeans(sample, start, width, centroidsPerSubspace, centroids, start * centroidsPerSubspace);
+        }
+
+        byte[] codes = new byte[subspaces];
+        float[] squaredNorms = new float[count];
+        float[] vec = new float[dimension];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            long codesStart = HEADER_BYTES + ((long) centroids.length + count) * Float.BYTES;
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(subspaces, 1 << 16)).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(codesStart);
+            for (int id = 0; id < count; id++) {
+                TVector v = vectors.apply(id);
+                float squaredNorm = 0;
+                if (v != null) {
+                    for (int i = 0; i < dimension; i++)
+                        vec[i] = (float) handler.get(v, i);
+                    for (int s = 0; s < subspaces; s++) {
+                        int start = start(s, dimension, subspaces);
+                        int width = start(s + 1, dimension, subspaces) - start;
+                        int offset = start * centroidsPerSubspace;
+                        int code = nearest(vec, start, width, centroids, offset, centroidsPerSubspace);
+                        codes[s] = (byte) code;
+                        for (int i = 0; i < width; i++) {
+                            float decoded = centroids[offset + code * width + i];
+                            squaredNorm += decoded * decoded;
+                        }
+                    }
+                } else {
+                    Arrays.fill(codes, (byte) 0);
+                }
+                squaredNorms[id] = squaredNorm;
+                if (buffer.remaining() < subspaces)
+                    flush(channel, buffer);
+                buffer.put(codes);
+            }
+            flush(channel, buffer);
+
+            channel.position(0);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(dimension)
+                    .putInt(subspaces).putInt(centroidsPerSubspace);
+            while (buffer.position() < HEADER_BYTES)
+                buffer.put((byte) 0);
+            for (float[] floats : new float[][]{centroids, squaredNorms}) {
+                for (float value : floats) {
+                    if (buffer.remaining() < Float.BYTES)
+                        flush(channel, buffer);
+                    buffer.putFloat(value);
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    /**
+     * Read the codebooks and norms written by
+     * {@link #write(File, VecHandler, IntFunction, int, int, int)} and map the codes into memory.
+     * @param file the file to read
+     * @param handler the handler of the vectors
+     * @return the quantized vectors
+     * @throws IOException
+     */
+    static <TVector> ProductQuantizer<TVector> load(File file, QuantizableHandler<TVector> handler) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IllegalArgumentException("Not a product quantized vector file: " + file);
+            int count = header.getInt(8);
+            int dimension = header.getInt(12);
+            int subspaces = header.getInt(16);
+            int centroidsPerSubspace = header.getInt(20);
+            long centroidCount = (long) dimension * centroidsPerSubspace;
+            float[] centroids = MappedCodes.readFloats(channel, HEADER_BYTES, (int) centroidCount);
+            float[] squaredNorms = MappedCodes.readFloats(channel, HEADER_BYTES + centroidCount * Float.BYTES, count);
+            MappedCodes codes = MappedCodes.map(channel,
+                    HEADER_BYTES + (centroidCount + count) * Float.BYTES, count, subspaces);
+            return new ProductQuantizer<>(handler, count, dimension, subspaces, centroidsPerSubspace,
+                    centroids, squaredNorms, codes);
+        }
+    }
+
+    //evenly spaced live vectors, at most TRAINING_SAMPLE_SIZE of them
+    private static <TVector> float[][] sample(VecHandler<TVector> handler, IntFunction<TVector> vectors,
+                                              int count, int dimension) {
+        int step = Math.max(1, count / TRAINING_SAMPLE_SIZE);
+        float[][] sample = new float[Math.min(count, TRAINING_SAMPLE_SIZE)][];
+        int size = 0;
+        for (int id = 0; id < count && size < sample.length; id += step) {
+            TVector v = vectors.apply(id);
+            if (v == null)
+                continue;
+            float[] vec = new float[dimension];
+            for (int i = 0; i < dimension; i++)
+                vec[i] = (float) handler.get(v, i);
+            sample[size++] = vec;
+        }
+        return Arrays.copyOf(sample, size);
+    }
+
+    //Lloyd's k-means over the dimensions [start, start + width) of the sample,
+    //writing the k centroids back to back into centroids from offset
+    private static void kMeans(float[][] sample, int start, int width, int k, float[] centroids, int offset) {
+        Random random = new Random(42 + start);
+        if (sample.length == 0)
+            return;
+        for (int c = 0; c < k; c++) {
+            float[] seed = sample[(int) ((long) c * sample.length / k)];
+            System.arraycopy(seed, start, centroids, offset + c * width, width);
+        }
+        float[] sums = new float[k * width];
+        int[] sizes = new int[k];
+        for (int iteration = 0; iteration < TRAINING_ITERATIONS; iteration++) {
+            Arrays.fill(sums, 0);
+            Arrays.fill(sizes, 0);
+            for (int j = 0; j < sample.length; j++) {
+                int c = nearest(sample[j], start, width, centroids, offset, k);
+                sizes[c]++;
+                for (int i = 0; i < width; i++)
+                    sums[c * width + i] += sample[j][start + i];
+            }
+            for (int c = 0; c < k; c++) {
+                //an empty cluster is moved onto a random sample vector
+                if (sizes[c] == 0) {
+                    float[] seed = sample[random.nextInt(sample.length)];
+                    System.arraycopy(seed, start, centroids, offset + c * width, width);
+                    continue;
+                }
+                for (int i = 0; i < width; i++)
+                    centroids[offset + c * width + i] = sums[c * width + i] / sizes[c];
+            }
+        }
+    }
+
+    //index of the centroid nearest to the vector in a subspace, by euclidean distance
+    private static int nearest(float[] vec, int start, int width, float[] centroids, int offset, int k) {
+        int best = 0;
+        float bestDistance = Float.POSITIVE_INFINITY;
+        for (int c = 0; c < k; c++) {
+            int centroid = offset + c * width;
+            float distance = 0;
+            for (int i = 0; i < width; i++) {
+                float diff = vec[start + i] - centroids[centroid + i];
+                distance += diff * diff;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
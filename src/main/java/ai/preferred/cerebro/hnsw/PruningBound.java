@@ -0,0 +1,59 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Distance bound shared by the segments searching the same query.
+ * </br>
+ * A segment whose dynamic list is full publishes its farthest entry
+ * here. The lowest published distance bounds the ef-th best distance
+ * over all segments, so a candidate farther than that would not be
+ * expanded by a single search of list size ef over all segments
+ * together. Segments with a full list stop expanding such candidates
+ * instead of each exploring to its own full ef.
+ * </br>
+ * One slot is kept per query so that a whole block of a batch can
+ * share one instance. Distances are stored as sortable int bits so
+ * that lowering a slot is a single compare and set.
+ */
+final class PruningBound {
+    private final AtomicIntegerArray bounds;
+
+    PruningBound(int size) {
+        bounds = new AtomicIntegerArray(size);
+        clear();
+    }
+
+    /**
+     * Lift the bound of every slot, no segment may be searching meanwhile.
+     */
+    void clear() {
+        int unbounded = sortable(Float.POSITIVE_INFINITY);
+        for (int i = 0; i < bounds.length(); i++)
+            bounds.set(i, unbounded);
+    }
+
+    float get(int slot) {
+        return unsortable(bounds.get(slot));
+    }
+
+    /**
+     * Lower the bound of a slot if the given distance is below it.
+     */
+    void offer(int slot, float distance) {
+        int bits = sortable(distance);
+        int current = bounds.get(slot);
+        while (bits < current && !bounds.compareAndSet(slot, current, bits))
+            current = bounds.get(slot);
+    }
+
+    //int bits of a float ordered like the float, negative ones included
+    private static int sortable(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    private static float unsortable(int bits) {
+        return Float.intBitsToFloat(bits ^ ((bits >> 31) & 0x7fffffff));
+    }
+}
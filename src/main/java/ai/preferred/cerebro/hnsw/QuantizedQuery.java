@@ -0,0 +1,19 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * A query prepared by a {@link Quantizer}, held in the search scratch
+ * so that preparing it does not allocate once warm.
+ */
+final class QuantizedQuery {
+    //values the quantizer scores codes with, sized by the quantizer
+    float[] table;
+    //constant part of the dot product with any quantized vector
+    float offset;
+    float squaredNorm;
+
+    float[] table(int size) {
+        if (table == null || table.length != size)
+            table = new float[size];
+        return table;
+    }
+}
@@ -0,0 +1,31 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * Compact copy of the vectors of a leaf segment that searches walk the
+ * graph with, reading the full vectors only to rerank the final candidates.
+ * Distances are derived from the dot product and squared norms through
+ * {@link ai.preferred.cerebro.handler.QuantizableHandler#distance(double, double, double)}.
+ *
+ * @param <TVector> the type of vector supported
+ */
+interface Quantizer<TVector> {
+    /**
+     * @return number of ids in the segment
+     */
+    int count();
+
+    /**
+     * Compute once per query and segment whatever the quantized
+     * vectors are compared with.
+     * @param query the query vector
+     * @param prepared receives the prepared query, reused from one query to the next
+     */
+    void prepare(TVector query, QuantizedQuery prepared);
+
+    /**
+     * @param query a query given to {@link #prepare(Object, QuantizedQuery)}
+     * @param internalId the node to compare the query with
+     * @return approximate distance between the query and the node
+     */
+    float distance(QuantizedQuery query, int internalId);
+}
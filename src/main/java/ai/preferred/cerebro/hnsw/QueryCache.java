@@ -0,0 +1,273 @@
+package ai.preferred.cerebro.hnsw;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of search results of {@link HnswIndexSearcher}, so that queries
+ * repeated with the same vector and settings skip the search of every
+ * leaf segment.
+ * </br>
+ * Entries are keyed by the index directory, the query vector and the
+ * settings of the search, and tagged with the load epoch of the searcher
+ * that cached them, unique to every searcher opened. A searcher given the
+ * cache drops the entries older searchers of the same directory cached,
+ * so one cache can be shared by the successive searchers of an index that
+ * keeps being written to, or is rebuilt in place, without stale hits.
+ * </br>
+ * The cache is bounded by an estimate of the memory its entries take. It
+ * is split into stripes locked independently, each evicting its least
+ * recently used entries first, so that concurrent searches rarely wait
+ * for each other to look up or cache their results.
+ */
+public class QueryCache {
+    //rough size of the key, entry and map node of every cached result
+    private static final long ENTRY_OVERHEAD = 128;
+    //rough size of a ScoreDoc and the reference to it
+    private static final long HIT_BYTES = 32;
+    private static final int MAX_STRIPES = 16;
+    //smaller caches use fewer stripes, so that each still holds many results
+    private static final long MIN_STRIPE_BYTES = 64 * 1024;
+
+    private final Stripe[] stripes;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param maxBytes the estimated memory the cached results may take
+     */
+    public QueryCache(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Cache size must be positive");
+        int count = MAX_STRIPES;
+        while (count > 1 && maxBytes / count < MIN_STRIPE_BYTES)
+            count >>= 1;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++)
+            stripes[i] = new Stripe(maxBytes / count);
+    }
+
+    /**
+     * @return the cached results of the query, null if there are none
+     * cached by the searcher of the given load epoch
+     */
+    TopDocs get(String index, long epoch, Object query, SearchParams params) {
+        Key key = new Key(index, query, params);
+        TopDocs topDocs = stripe(key).get(key, epoch);
+        if (topDocs == null) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return copy(topDocs);
+    }
+
+    /**
+     * Cache the results of a query, evicting the least recently used
+     * results of its stripe if the stripe grows past its size.
+     * @param queryBytes estimated memory taken by the query vector
+     */
+    void put(String index, long epoch, Object query, long queryBytes,
+             SearchParams params, TopDocs topDocs) {
+        Key key = new Key(index, query, params);
+        long entryBytes = ENTRY_OVERHEAD + queryBytes + HIT_BYTES * topDocs.scoreDocs.length;
+        Stripe stripe = stripe(key);
+        if (entryBytes <= stripe.maxBytes)
+            stripe.put(key, new Entry(epoch, copy(topDocs), entryBytes));
+    }
+
+    /**
+     * Drop the results cached for the index by searchers of any load epoch
+     * other than the given one.
+     */
+    void invalidate(String index, long epoch) {
+        for (Stripe stripe : stripes)
+            stripe.invalidate(index, epoch);
+    }
+
+    /**
+     * Drop all cached results.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes)
+            stripe.clear();
+    }
+
+    /**
+     * @return number of cached results
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes)
+            size += stripe.size();
+        return size;
+    }
+
+    /**
+     * @return estimated memory taken by the cached results
+     */
+    public long ramBytesUsed() {
+        long bytes = 0;
+        for (Stripe stripe : stripes)
+            bytes += stripe.bytes();
+        return bytes;
+    }
+
+    /**
+     * @return number of searches answered from the cache
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return number of searches looked up in the cache without success
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    private Stripe stripe(Key key) {
+        int hash = key.hash ^ (key.hash >>> 16);
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    //cached results are copied in and out since callers may modify
+    //the ScoreDocs, as TopDocs.merge() does with their shardIndex
+    private static TopDocs copy(TopDocs topDocs) {
+        ScoreDoc[] hits = new ScoreDoc[topDocs.scoreDocs.length];
+        for (int i = 0; i < hits.length; i++) {
+            ScoreDoc hit = topDocs.scoreDocs[i];
+            hits[i] = new ScoreDoc(hit.doc, hit.score, hit.shardIndex);
+        }
+        return new TopDocs(topDocs.totalHits, hits, topDocs.getMaxScore());
+    }
+
+    //least recently used cache of the keys hashing to it, access ordered
+    //so that a lookup moves its entry last, hence locked on reads too
+    private static final class Stripe {
+        final long maxBytes;
+        final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes;
+
+        Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized TopDocs get(Key key, long epoch) {
+            Entry entry = entries.get(key);
+            return entry == null || entry.epoch != epoch ? null : entry.topDocs;
+        }
+
+        synchronized void put(Key key, Entry entry) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null)
+                bytes -= previous.bytes;
+            bytes += entry.bytes;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+
+        synchronized void invalidate(String index, long epoch) {
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> e = it.next();
+                if (e.getKey().index.equals(index) && e.getValue().epoch != epoch) {
+                    bytes -= e.getValue().bytes;
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+    }
+
+    private static final class Entry {
+        final long epoch;
+        final TopDocs topDocs;
+        final long bytes;
+
+        Entry(long epoch, TopDocs topDocs, long bytes) {
+            this.epoch = epoch;
+            this.topDocs = topDocs;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class Key {
+        final String index;
+        //a private copy of the query vector, compared element by element
+        final Object query;
+        final int k;
+        final int ef;
+        final int perSegmentK;
+        final int maxDistanceComputations;
+        final boolean sharedPruning;
+        final int segmentParallelism;
+        final boolean quantizedTraversal;
+        final boolean rerank;
+        final boolean exact;
+        final int hash;
+
+        Key(String index, Object query, SearchParams params) {
+            this.index = index;
+            this.query = query;
+            this.k = params.k;
+            this.ef = params.ef;
+            this.perSegmentK = params.perSegmentK;
+            this.maxDistanceComputations = params.maxDistanceComputations;
+            this.sharedPruning = params.sharedPruning;
+            this.segmentParallelism = params.segmentParallelism;
+            this.quantizedTraversal = params.quantizedTraversal;
+            this.rerank = params.rerank;
+            this.exact = params.exact;
+            this.hash = Objects.hash(index, Arrays.deepHashCode(new Object[]{query}), k, ef, perSegmentK,
+                    maxDistanceComputations, sharedPruning, segmentParallelism, quantizedTraversal, rerank, exact);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return hash == other.hash
+                    && k == other.k
+                    && ef == other.ef
+                    && perSegmentK == other.perSegmentK
+                    && maxDistanceComputations == other.maxDistanceComputations
+                    && sharedPruning == other.sharedPruning
+                    && segmentParallelism == other.segmentParallelism
+                    && quantizedTraversal == other.quantizedTraversal
+                    && rerank == other.rerank
+                    && exact == other.exact
+                    && index.equals(other.index)
+                    && Objects.deepEquals(query, other.query);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * Receives the matches of {@link HnswIndexSearcher#searchRadius(Object, float, RadiusCollector)}
+ * one at a time.
+ */
+@FunctionalInterface
+public interface RadiusCollector {
+    /**
+     * @param externalId the external id of an item within the radius
+     * @param score its score, same as the ones of {@link org.apache.lucene.search.TopDocs} results
+     */
+    void collect(int externalId, float score);
+}
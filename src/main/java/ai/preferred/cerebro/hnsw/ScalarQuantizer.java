@@ -0,0 +1,199 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.QuantizableHandler;
+import ai.preferred.cerebro.handler.VecHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * One byte per element copy of the vectors of a leaf segment, used to walk
+ * the graph at a fraction of the memory traffic of the full vectors, which
+ * are then only read to rerank the final candidates.
+ * </br>
+ * Each dimension is mapped linearly from the [min, max] range of the
+ * segment's vectors onto the codes 0 to 255. Distances are derived from the
+ * dot product and squared norms, so a query needs no decoding: its
+ * elements are scaled once per segment by the step of every dimension.
+ * </br>
+ * File layout (little endian): a header of {@link #HEADER_BYTES} bytes, the
+ * min then the step of every dimension as floats, the squared norm of every
+ * decoded vector as floats, then the codes of the vectors back to back.
+ *
+ * @param <TVector> the type of vector supported
+ */
+final class ScalarQuantizer<TVector> implements Quantizer<TVector> {
+    static final int MAGIC = 0x48535138; //HSQ8
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    private static final int LEVELS = 255;
+
+    final int count;
+    final int dimension;
+
+    private final QuantizableHandler<TVector> handler;
+    private final float[] min;
+    private final float[] step;
+    private final float[] squaredNorms;
+    private final MappedCodes codes;
+
+    private ScalarQuantizer(QuantizableHandler<TVector> handler, int count, int dimension,
+                            float[] min, float[] step, float[] squaredNorms, MappedCodes codes) {
+        this.handler = handler;
+        this.count = count;
+        this.dimension = dimension;
+        this.min = min;
+        this.step = step;
+        this.squaredNorms = squaredNorms;
+        this.codes = codes;
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    //the dot product with a decoded vector is the offset plus
+    //the dot product of the scaled query with the codes
+    @Override
+    public void prepare(TVector query, QuantizedQuery prepared) {
+        float[] weights = prepared.table(dimension);
+        float offset = 0;
+        float squaredNorm = 0;
+        for (int i = 0; i < dimension; i++) {
+            float value = (float) handler.get(query, i);
+            weights[i] = value * step[i];
+            offset += value * min[i];
+            squaredNorm += value * value;
+        }
+        prepared.offset = offset;
+        prepared.squaredNorm = squaredNorm;
+    }
+
+    @Override
+    public float distance(QuantizedQuery query, int internalId) {
+        float[] weights = query.table;
+        ByteBuffer chunk = codes.chunk(internalId);
+        int base = codes.offset(internalId);
+        float dot = query.offset;
+        for (int i = 0; i < dimension; i++) {
+            dot += weights[i] * (chunk.get(base + i) & 0xff);
+        }
+        return handler.distance(dot, query.squaredNorm, squaredNorms[internalId]);
+    }
+
+    /**
+     * Train the ranges on the vectors of a segment then write their codes
+     * in the layout described at {@link ScalarQuantizer}.
+     * @param file the file to write
+     * @param handler the handler of the vectors
+     * @param vectors accessor returning the vector of an internal id, null for deleted ids
+     * @param count number of ids in use
+     * @param dimension number of elements of each vector
+     * @throws IOException
+     */
+    static <TVector> void write(File file, VecHandler<TVector> handler, IntFunction<TVector> vectors,
+                                int count, int dimension) throws IOException {
+        float[] min = new float[dimension];
+        float[] max = new float[dimension];
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        for (int id = 0; id < count; id++) {
+            TVector vec = vectors.apply(id);
+            if (vec == null)
+                continue;
+            for (int i = 0; i < dimension; i++) {
+                float value = (float) handler.get(vec, i);
+                min[i] = Math.min(min[i], value);
+                max[i] = Math.max(max[i], value);
+            }
+        }
+        float[] step = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            if (min[i] > max[i])
+                min[i] = max[i] = 0;
+            step[i] = (max[i] - min[i]) / LEVELS;
+        }
+
+        byte[] codes = new byte[dimension];
+        float[] squaredNorms = new float[count];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            long codesStart = HEADER_BYTES + (2L * dimension + count) * Float.BYTES;
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(dimension, 1 << 16)).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(codesStart);
+            for (int id = 0; id < count; id++) {
+                TVector vec = vectors.apply(id);
+                float squaredNorm = 0;
+                for (int i = 0; i < dimension; i++) {
+                    int code = 0;
+                    if (vec != null && step[i] > 0)
+                        code = Math.round(((float) handler.get(vec, i) - min[i]) / step[i]);
+                    code = Math.max(0, Math.min(LEVELS, code));
+                    codes[i] = (byte) code;
+                    float decoded = min[i] + step[i] * code;
+                    squaredNorm += decoded * decoded;
+                }
+                squaredNorms[id] = squaredNorm;
+                if (buffer.remaining() < dimension)
+                    flush(channel, buffer);
+                buffer.put(codes);
+            }
+            flush(channel, buffer);
+
+            channel.position(0);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(dimension);
+            while (buffer.position() < HEADER_BYTES)
+                buffer.put((byte) 0);
+            for (float[] floats : new float[][]{min, step, squaredNorms}) {
+                for (float value : floats) {
+                    if (buffer.remaining() < Float.BYTES)
+                        flush(channel, buffer);
+                    buffer.putFloat(value);
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    /**
+     * Read the ranges and norms written by {@link #write(File, VecHandler, IntFunction, int, int)}
+     * and map the codes into memory.
+     * @param file the file to read
+     * @param handler the handler of the vectors
+     * @return the quantized vectors
+     * @throws IOException
+     */
+    static <TVector> ScalarQuantizer<TVector> load(File file, QuantizableHandler<TVector> handler) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IllegalArgumentException("Not a quantized vector file: " + file);
+            int count = header.getInt(8);
+            int dimension = header.getInt(12);
+            float[] ranges = MappedCodes.readFloats(channel, HEADER_BYTES, 2 * dimension);
+            float[] min = Arrays.copyOfRange(ranges, 0, dimension);
+            float[] step = Arrays.copyOfRange(ranges, dimension, 2 * dimension);
+            float[] squaredNorms = MappedCodes.readFloats(channel, HEADER_BYTES + 2L * dimension * Float.BYTES, count);
+            MappedCodes codes = MappedCodes.map(channel,
+                    HEADER_BYTES + (2L * dimension + count) * Float.BYTES, count, dimension);
+            return new ScalarQuantizer<>(handler, count, dimension, min, step, squaredNorms, codes);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
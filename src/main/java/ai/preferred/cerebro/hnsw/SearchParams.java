@@ -0,0 +1,206 @@
+package ai.preferred.cerebro.hnsw;
+
+import org.apache.lucene.util.Bits;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Class containing the settings of one search, so that searches with
+ * different speed / accuracy trade-offs can share one loaded index.
+ * Settings left unset fall back to the values the index was saved with.
+ */
+public class SearchParams {
+    private static final int UNSET = 0;
+
+    int k;
+    int ef = UNSET;
+    int perSegmentK = UNSET;
+    int maxDistanceComputations = Integer.MAX_VALUE;
+    boolean sharedPruning = false;
+    IntPredicate filter = null;
+    int segmentParallelism = 1;
+    boolean quantizedTraversal = true;
+    boolean rerank = true;
+    boolean exact = false;
+
+    /**
+     * @param k the number of top results to be selected
+     */
+    public SearchParams(int k) {
+        this.k = k;
+    }
+
+    /**
+     * Set the number of top results to be selected.
+     * @param k
+     */
+    public void setK(int k) {
+        this.k = k;
+    }
+
+    /**
+     * The size of the dynamic list for the nearest neighbors in each segment, overriding the ef
+     * of the index for this search only. Higher ef leads to more accurate but slower search.
+     *
+     * @param ef size of the dynamic list for the nearest neighbors
+     */
+    public void setEf(int ef) {
+        this.ef = ef;
+    }
+
+    /**
+     * The number of results each segment contributes to the merge, k by default. Lowering it
+     * speeds up the merge when k is large and results are spread evenly across segments.
+     *
+     * @param perSegmentK the number of top results to be selected in each segment
+     */
+    public void setPerSegmentK(int perSegmentK) {
+        this.perSegmentK = perSegmentK;
+    }
+
+    /**
+     * Cap the number of distances computed in each segment, the search of a segment
+     * stops and returns the best nodes found so far once the cap is reached.
+     *
+     * @param maxDistanceComputations maximum number of distance computations per segment
+     */
+    public void setMaxDistanceComputations(int maxDistanceComputations) {
+        this.maxDistanceComputations = maxDistanceComputations;
+    }
+
+    /**
+     * When enabled, the segments searching a query share the lowest distance bound of their
+     * dynamic lists, and once its own list is full a segment stops expanding candidates
+     * beyond it. The segments then explore about as much as one search of list size ef
+     * over all of them, instead of ef each. This spares distance computations when there
+     * are many segments, at the cost of some recall.
+     *
+     * @param sharedPruning whether segments share a pruning bound
+     */
+    public void setSharedPruning(boolean sharedPruning) {
+        this.sharedPruning = sharedPruning;
+    }
+
+    /**
+     * Restrict the results to the external ids set in acceptDocs, ids past its length
+     * are rejected. Rejected nodes are still traversed to reach accepted ones. When few
+     * nodes of a segment are accepted the segment is scanned exhaustively instead.
+     *
+     * @param acceptDocs the external ids allowed in the results, null for no restriction
+     */
+    public void setAcceptDocs(Bits acceptDocs) {
+        this.filter = acceptDocs == null ? null : id -> id < acceptDocs.length() && acceptDocs.get(id);
+    }
+
+    /**
+     * Same as {@link #setAcceptDocs(Bits)} with a predicate over external ids.
+     *
+     * @param filter test passed by the external ids allowed in the results, null for no restriction
+     */
+    public void setFilter(IntPredicate filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Split the search of each segment across several workers of the searcher's executor,
+     * each starting from a different node near the query and sharing which nodes were
+     * visited. Lowers the latency of a query on indexes with few large segments when
+     * cores are idle, at the cost of some extra work. Not applied to searches with a
+     * filter, a cap on distance computations or a shared pruning bound.
+     * </br>
+     * Workers only run at the same time if the executor has threads to spare beyond the
+     * ones searching the other segments, so give the searcher an executor of about
+     * segments * segmentParallelism threads. The pool a searcher creates by itself has
+     * one thread per segment or per core and leaves little room for the workers.
+     *
+     * @param segmentParallelism maximum number of workers per segment, 1 to search sequentially
+     */
+    public void setSegmentParallelism(int segmentParallelism) {
+        this.segmentParallelism = segmentParallelism;
+    }
+
+    /**
+     * On an index saved with scalar quantization, walk the graph with the quantized
+     * vectors and rerank the final candidates with the original ones. Disable to walk
+     * it with the original vectors, slower but slightly more accurate. Searches split
+     * across workers and radius searches always use the original vectors.
+     *
+     * @param quantizedTraversal whether to use the quantized vectors when the index has them
+     */
+    public void setQuantizedTraversal(boolean quantizedTraversal) {
+        this.quantizedTraversal = quantizedTraversal;
+    }
+
+    /**
+     * Whether a search walking the graph with quantized vectors recomputes the distances
+     * of its final candidates with the original vectors. Without reranking the original
+     * vectors are never read, at the cost of recall, and scores are approximate.
+     *
+     * @param rerank whether to rerank candidates found with quantized vectors
+     */
+    public void setRerank(boolean rerank) {
+        this.rerank = rerank;
+    }
+
+    /**
+     * Compute the distance to every node instead of walking the graphs, returning the
+     * true nearest neighbors, for example as ground truth to measure the recall of
+     * other settings against. Only k, the per segment k and the filter apply. Batch
+     * searches compare blocks of queries with blocks of vectors held in the cache.
+     *
+     * @param exact whether to search exhaustively
+     */
+    public void setExact(boolean exact) {
+        this.exact = exact;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getEf() {
+        return ef;
+    }
+
+    public int getPerSegmentK() {
+        return perSegmentK;
+    }
+
+    public int getMaxDistanceComputations() {
+        return maxDistanceComputations;
+    }
+
+    public boolean isSharedPruning() {
+        return sharedPruning;
+    }
+
+    public IntPredicate getFilter() {
+        return filter;
+    }
+
+    public int getSegmentParallelism() {
+        return segmentParallelism;
+    }
+
+    public boolean isQuantizedTraversal() {
+        return quantizedTraversal;
+    }
+
+    public boolean isRerank() {
+        return rerank;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    //number of results a segment has to return
+    int segmentK() {
+        return perSegmentK == UNSET ? k : perSegmentK;
+    }
+
+    //size of the dynamic list of a segment whose index was saved with defaultEf
+    int segmentEf(int defaultEf) {
+        return Math.max(ef == UNSET ? defaultEf : ef, segmentK());
+    }
+}
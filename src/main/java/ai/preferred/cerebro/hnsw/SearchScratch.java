@@ -0,0 +1,74 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Working memory of one search over a segment, reused from one
+ * query to the next so that a search does not allocate once warm.
+ * A scratch is used by one search at a time, borrowed from the pool
+ * of its searcher, see {@link ParentHnsw#borrowSearchScratch()}.
+ */
+final class SearchScratch {
+    //nodes whose neighbors are still to be expanded, nearest on top
+    final CandidateHeap candidates;
+    //best nodes found so far, farthest on top
+    final CandidateHeap results;
+    //nodes already reached, sized to the largest segment
+    final VisitedSet visited;
+    private final int maxNodeCount;
+    //visited set and bound of the workers of a search split across threads,
+    //created by the first such search
+    private SharedVisitedSet sharedVisited;
+    private PruningBound sharedBound;
+    //distances the current search may still compute
+    int distanceBudget;
+    //distance to the query of the node the greedy descent ended at
+    float entryDistance;
+    //bound shared with the other segments searching the same query, may be null
+    PruningBound bound;
+    int boundSlot;
+    //test over external ids the results must pass, may be null
+    IntPredicate filter;
+    //whether the graph is walked with quantizedQuery instead of the query
+    boolean quantized;
+    final QuantizedQuery quantizedQuery = new QuantizedQuery();
+
+    SearchScratch(int ef, int maxNodeCount) {
+        this.candidates = new CandidateHeap(ef * 4, false);
+        this.results = new CandidateHeap(ef + 1, true);
+        this.visited = new VisitedSet(maxNodeCount);
+        this.maxNodeCount = maxNodeCount;
+    }
+
+    /**
+     * @return the cleared visited set to share with the workers of this search
+     */
+    SharedVisitedSet sharedVisited() {
+        if (sharedVisited == null)
+            sharedVisited = new SharedVisitedSet(maxNodeCount);
+        else
+            sharedVisited.clear();
+        return sharedVisited;
+    }
+
+    /**
+     * @return the cleared single slot bound to share with the workers of this search
+     */
+    PruningBound sharedBound() {
+        if (sharedBound == null)
+            sharedBound = new PruningBound(1);
+        else
+            sharedBound.clear();
+        return sharedBound;
+    }
+
+    SearchScratch reset() {
+        candidates.clear();
+        results.clear();
+        visited.clear();
+        bound = null;
+        filter = null;
+        quantized = false;
+        return this;
+    }
+}
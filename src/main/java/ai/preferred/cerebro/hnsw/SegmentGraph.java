@@ -0,0 +1,234 @@
+package ai.preferred.cerebro.hnsw;
+
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.IntFunction;
+
+/**
+ * Read-only adjacency of a leaf segment, laid out so that it can be
+ * served straight from a memory-mapped file or from a handful of
+ * int arrays on the heap, without building any object per node.
+ * </br>
+ * Layer 0 is a fixed-stride block: node i owns the ints starting at
+ * i * (maxM0 + 1), the first one being its number of connections and
+ * the rest its neighbors. Every higher layer is stored in compressed
+ * sparse rows: an offsets array of nodeCount + 1 entries and one array
+ * of neighbors, the neighbors of node i being in [offsets[i], offsets[i + 1]).
+ * </br>
+ * File layout (little endian): a header of {@link #HEADER_BYTES} bytes,
+ * the layer 0 block, then for each higher layer its offsets followed
+ * by its neighbors.
+ */
+final class SegmentGraph {
+    static final int MAGIC = 0x48475246; //HGRF
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+
+    final int nodeCount;
+    final int entryId;
+    final int entryLevel;
+    final int maxM0;
+
+    private final int stride;
+    private final IntBuffer base;
+    private final IntBuffer[] offsets;
+    private final IntBuffer[] links;
+
+    private SegmentGraph(int nodeCount, int entryId, int entryLevel, int maxM0,
+                         IntBuffer base, IntBuffer[] offsets, IntBuffer[] links) {
+        this.nodeCount = nodeCount;
+        this.entryId = entryId;
+        this.entryLevel = entryLevel;
+        this.maxM0 = maxM0;
+        this.stride = maxM0 + 1;
+        this.base = base;
+        this.offsets = offsets;
+        this.links = links;
+    }
+
+    /**
+     * @return the buffer holding the neighbor ids of a layer, to be
+     * read from {@link #begin(int, int)} until {@link #end(int, int)}
+     */
+    IntBuffer links(int layer) {
+        return layer == 0 ? base : links[layer];
+    }
+
+    int begin(int id, int layer) {
+        return layer == 0 ? id * stride + 1 : offsets[layer].get(id);
+    }
+
+    int end(int id, int layer) {
+        return layer == 0 ? id * stride + 1 + base.get(id * stride) : offsets[layer].get(id + 1);
+    }
+
+    /**
+     * Pack connections deserialized from the kryo format into heap arrays.
+     * @param conns the outgoing connections of each node at each of its layers,
+     *              null for deleted ids
+     * @param entryId internal id of the entry node
+     * @param maxM0 maximum number of connections of a node in layer 0
+     * @return the packed graph
+     */
+    static SegmentGraph pack(int[][][] conns, int entryId, int maxM0) {
+        int nodeCount = conns.length;
+        int entryLevel = conns[entryId].length - 1;
+        int stride = maxM0 + 1;
+
+        int[] base = new int[nodeCount * stride];
+        for (int i = 0; i < nodeCount; i++) {
+            if (conns[i] == null)
+                continue;
+            int size = Math.min(conns[i][0].length, maxM0);
+            base[i * stride] = size;
+            System.arraycopy(conns[i][0], 0, base, i * stride + 1, size);
+        }
+
+        IntBuffer[] offsets = new IntBuffer[entryLevel + 1];
+        IntBuffer[] links = new IntBuffer[entryLevel + 1];
+        for (int layer = 1; layer <= entryLevel; layer++) {
+            int[] layerOffsets = new int[nodeCount + 1];
+            for (int i = 0; i < nodeCount; i++) {
+                int size = conns[i] != null && conns[i].length > layer ? conns[i][layer].length : 0;
+                layerOffsets[i + 1] = layerOffsets[i] + size;
+            }
+            int[] layerLinks = new int[layerOffsets[nodeCount]];
+            for (int i = 0; i < nodeCount; i++) {
+                if (conns[i] != null && conns[i].length > layer)
+                    System.arraycopy(conns[i][layer], 0, layerLinks, layerOffsets[i], conns[i][layer].length);
+            }
+            offsets[layer] = IntBuffer.wrap(layerOffsets);
+            links[layer] = IntBuffer.wrap(layerLinks);
+        }
+        return new SegmentGraph(nodeCount, entryId, entryLevel, maxM0, IntBuffer.wrap(base), offsets, links);
+    }
+
+    /**
+     * Map a graph file into memory, nothing but the header is read here.
+     * @param graphFile file written by {@link #write(File, IntFunction, int, int, int, int)}
+     * @return the graph served from the mapped file
+     * @throws IOException
+     */
+    static SegmentGraph map(File graphFile) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(graphFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = map(channel, 0, HEADER_BYTES);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IllegalArgumentException("Not a segment graph file: " + graphFile);
+            int nodeCount = header.getInt(8);
+            int entryId = header.getInt(12);
+            int entryLevel = header.getInt(16);
+            int maxM0 = header.getInt(20);
+
+            long position = HEADER_BYTES;
+            long size = (long) nodeCount * (maxM0 + 1) * Integer.BYTES;
+            IntBuffer base = map(channel, position, size).asIntBuffer();
+            position += size;
+
+            IntBuffer[] offsets = new IntBuffer[entryLevel + 1];
+            IntBuffer[] links = new IntBuffer[entryLevel + 1];
+            for (int layer = 1; layer <= entryLevel; layer++) {
+                size = (long) (nodeCount + 1) * Integer.BYTES;
+                offsets[layer] = map(channel, position, size).asIntBuffer();
+                position += size;
+                size = (long) offsets[layer].get(nodeCount) * Integer.BYTES;
+                links[layer] = map(channel, position, size).asIntBuffer();
+                position += size;
+            }
+            return new SegmentGraph(nodeCount, entryId, entryLevel, maxM0, base, offsets, links);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalStateException("Graph section of " + size + " bytes is too large to be mapped");
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Write the outgoing connections of the nodes of a segment in the
+     * layout described at {@link SegmentGraph}.
+     * @param graphFile the file to write
+     * @param nodes accessor returning the node of an internal id, null for deleted ids
+     * @param nodeCount number of ids in use
+     * @param entryId internal id of the entry node
+     * @param entryLevel highest layer of the entry node
+     * @param maxM0 maximum number of connections of a node in layer 0
+     * @throws IOException
+     */
+    static void write(File graphFile, IntFunction<Node<?>> nodes,
+                      int nodeCount, int entryId, int entryLevel, int maxM0) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(graphFile, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            IntWriter out = new IntWriter(channel);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(nodeCount)
+                    .putInt(entryId).putInt(entryLevel).putInt(maxM0);
+            header.clear();
+            channel.write(header);
+
+            for (int i = 0; i < nodeCount; i++) {
+                Node<?> node = nodes.apply(i);
+                IntArrayList conns = node == null ? null : node.outConns[0];
+                int size = conns == null ? 0 : Math.min(conns.size(), maxM0);
+                out.put(size);
+                for (int j = 0; j < maxM0; j++)
+                    out.put(j < size ? conns.get(j) : 0);
+            }
+
+            for (int layer = 1; layer <= entryLevel; layer++) {
+                int offset = 0;
+                out.put(offset);
+                for (int i = 0; i < nodeCount; i++) {
+                    Node<?> node = nodes.apply(i);
+                    if (node != null && node.maxLevel() >= layer)
+                        offset += node.outConns[layer].size();
+                    out.put(offset);
+                }
+                for (int i = 0; i < nodeCount; i++) {
+                    Node<?> node = nodes.apply(i);
+                    if (node != null && node.maxLevel() >= layer) {
+                        IntArrayList conns = node.outConns[layer];
+                        for (int j = 0; j < conns.size(); j++)
+                            out.put(conns.get(j));
+                    }
+                }
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Buffered writer of little endian ints to a channel.
+     */
+    static final class IntWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        IntWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void put(int value) throws IOException {
+            if (buffer.remaining() < Integer.BYTES)
+                flush();
+            buffer.putInt(value);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Vectors of a leaf segment served straight from a memory-mapped file.
+ * </br>
+ * File layout (little endian): a header of {@link #HEADER_BYTES} bytes
+ * followed by the vectors back to back, the vector of internal id i
+ * starting at i * dimension * bytesPerElement. Deleted ids are zeroed.
+ * A single mapping can not exceed 2GB so the file is mapped in chunks,
+ * each holding a whole number of vectors.
+ *
+ * @param <TVector> the type of vector supported
+ */
+final class SegmentVectors<TVector> {
+    static final int MAGIC = 0x48564543; //HVEC
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+
+    final int count;
+    final int dimension;
+
+    private final VecHandler<TVector> handler;
+    private final int bytesPerVector;
+    private final int vectorsPerChunk;
+    private final ByteBuffer[] chunks;
+
+    private SegmentVectors(VecHandler<TVector> handler, int count, int dimension,
+                           int vectorsPerChunk, ByteBuffer[] chunks) {
+        this.handler = handler;
+        this.count = count;
+        this.dimension = dimension;
+        this.bytesPerVector = dimension * handler.bytesPerElement();
+        this.vectorsPerChunk = vectorsPerChunk;
+        this.chunks = chunks;
+    }
+
+    float distance(TVector query, int internalId) {
+        return handler.distance(query,
+                chunks[internalId / vectorsPerChunk],
+                (internalId % vectorsPerChunk) * bytesPerVector);
+    }
+
+    float distance(TVector query, int internalId, float threshold) {
+        return handler.distanceBounded(query,
+                chunks[internalId / vectorsPerChunk],
+                (internalId % vectorsPerChunk) * bytesPerVector, threshold);
+    }
+
+    TVector get(int internalId) {
+        return handler.read(chunks[internalId / vectorsPerChunk],
+                (internalId % vectorsPerChunk) * bytesPerVector, dimension);
+    }
+
+    /**
+     * Map a vector file into memory, nothing but the header is read here.
+     * @param vecsFile file written by {@link #write(File, VecHandler, IntFunction, int, int)}
+     * @param handler the handler of the vectors
+     * @return the vectors served from the mapped file
+     * @throws IOException
+     */
+    static <TVector> SegmentVectors<TVector> map(File vecsFile, VecHandler<TVector> handler) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(vecsFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IllegalArgumentException("Not a segment vector file: " + vecsFile);
+            int count = header.getInt(8);
+            int dimension = header.getInt(12);
+            if (header.getInt(16) != handler.bytesPerElement())
+                throw new IllegalArgumentException("Vector file " + vecsFile + " was not written by "
+                        + handler.getClass().getCanonicalName());
+
+            long bytesPerVector = (long) dimension * handler.bytesPerElement();
+            int vectorsPerChunk = (int) Math.max(1, Integer.MAX_VALUE / bytesPerVector);
+            ByteBuffer[] chunks = new ByteBuffer[Math.max(1, (count + vectorsPerChunk - 1) / vectorsPerChunk)];
+            for (int i = 0; i < chunks.length; i++) {
+                long first = (long) i * vectorsPerChunk;
+                long size = Math.min(vectorsPerChunk, count - first) * bytesPerVector;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_BYTES + first * bytesPerVector, Math.max(0, size))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new SegmentVectors<>(handler, count, dimension, vectorsPerChunk, chunks);
+        }
+    }
+
+    /**
+     * Write the vectors of a segment in the layout described at {@link SegmentVectors}.
+     * @param vecsFile the file to write
+     * @param handler the handler of the vectors
+     * @param vectors accessor returning the vector of an internal id, null for deleted ids
+     * @param count number of ids in use
+     * @param dimension number of elements of each vector
+     * @throws IOException
+     */
+    static <TVector> void write(File vecsFile, VecHandler<TVector> handler, IntFunction<TVector> vectors,
+                                int count, int dimension) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(vecsFile, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            int bytesPerVector = dimension * handler.bytesPerElement();
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(HEADER_BYTES, Math.max(bytesPerVector, 1 << 16)))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count)
+                    .putInt(dimension).putInt(handler.bytesPerElement());
+            buffer.position(HEADER_BYTES);
+
+            for (int i = 0; i < count; i++) {
+                if (buffer.remaining() < bytesPerVector)
+                    flush(channel, buffer);
+                TVector vec = vectors.apply(i);
+                if (vec != null)
+                    handler.write(buffer, vec);
+                else
+                    buffer.position(buffer.position() + bytesPerVector);
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        //a skipped (deleted) vector relies on the buffer being zeroed
+        Arrays.fill(buffer.array(), (byte) 0);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,49 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Set for tracking visited nodes shared by the threads searching
+ * one segment in parallel. A node is claimed by exactly one thread,
+ * which is the only one to compute its distance.
+ * </br>
+ * As in {@link VisitedSet} every id holds the stamp of the last search
+ * that visited it, so that the set is reused from one query to the next
+ * and cleared in constant time.
+ */
+final class SharedVisitedSet {
+    private final AtomicIntegerArray stamps;
+    //only moved by clear(), between the searches of two queries
+    private int epoch = 1;
+
+    SharedVisitedSet(int count) {
+        this.stamps = new AtomicIntegerArray(count);
+    }
+
+    /**
+     * Mark the id as visited.
+     *
+     * @param id The identifier.
+     * @return True if the id was not visited before, by this thread or any other.
+     */
+    boolean claim(int id) {
+        int stamp = stamps.get(id);
+        while (stamp != epoch) {
+            if (stamps.compareAndSet(id, stamp, epoch))
+                return true;
+            stamp = stamps.get(id);
+        }
+        return false;
+    }
+
+    /**
+     * Reset the set, no thread may be claiming ids meanwhile.
+     */
+    void clear() {
+        if (++epoch == 0) {
+            for (int i = 0; i < stamps.length(); i++)
+                stamps.set(i, 0);
+            epoch = 1;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.Arrays;
+
+/**
+ * Set for tracking visited nodes that can be reset in constant time.
+ * </br>
+ * Every id holds the stamp of the last search that visited it, an id
+ * is in the set if its stamp equals the one of the current search.
+ * Clearing only moves on to the next stamp, the buffer is wiped once
+ * every 65535 clears when the stamps wrap around.
+ */
+public class VisitedSet {
+
+    private final short[] stamps;
+    private short epoch = 1;
+
+    /**
+     * Initializes a new instance of the {@link VisitedSet} class.
+     *
+     * @param count The number of ids in the set.
+     */
+    public VisitedSet(int count) {
+        this.stamps = new short[count];
+    }
+
+    /**
+     * Checks whether the id has been visited.
+     *
+     * @param id The identifier.
+     * @return True if the identifier is in the set.
+     */
+    boolean isTrue(int id) {
+        return stamps[id] == epoch;
+    }
+
+    /**
+     * Mark the id as visited.
+     *
+     * @param id The identifier.
+     */
+    void flipTrue(int id) {
+        stamps[id] = epoch;
+    }
+
+    /**
+     * Reset the set.
+     */
+    void clear() {
+        if (++epoch == 0) {
+            Arrays.fill(stamps, (short) 0);
+            epoch = 1;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ai.preferred.cerebro.handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Java 17 version of the distance kernels, running them on the incubating
+ * Vector API when the jdk.incubator.vector module was added to the JVM and
+ * the platform has SIMD registers, on the plain loops of
+ * {@link ScalarDistances} otherwise.
+ */
+final class DistanceKernels {
+    static final int BOUND_CHECK_INTERVAL = 32;
+    //reducing the lanes to compare costs more than a plain loop's compare
+    static final int VECTORIZED_BOUND_CHECK_INTERVAL = 128;
+    private static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && VectorizedDistances.isSupported();
+    //later versions of the incubating API dropped loading vectors from buffers
+    private static final boolean VECTORIZED_BUFFERS = VECTORIZED && VectorizedDistances.isBufferSupported();
+
+    private DistanceKernels() {
+    }
+
+    static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    static float cosineDistance(float[] a, float[] b, int offset, int length) {
+        if (VECTORIZED)
+            return VectorizedDistances.cosineDistance(a, b, offset, length);
+        return ScalarDistances.cosineDistance(a, b, offset, length);
+    }
+
+    static float dot(float[] a, float[] b, int offset, int length) {
+        if (VECTORIZED)
+            return VectorizedDistances.dot(a, b, offset, length);
+        return ScalarDistances.dot(a, b, offset, length);
+    }
+
+    static float squaredDistance(float[] a, float[] b, int offset, int length) {
+        if (VECTORIZED)
+            return VectorizedDistances.squaredDistance(a, b, offset, length);
+        return ScalarDistances.squaredDistance(a, b, offset, length);
+    }
+
+    static float squaredDistanceBounded(float[] a, float[] b, int offset, int length, float threshold) {
+        if (VECTORIZED)
+            return VectorizedDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+        return ScalarDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+    }
+
+    static float cosineDistance(float[] a, ByteBuffer b, int offset, int length) {
+        if (VECTORIZED_BUFFERS)
+            return VectorizedDistances.cosineDistance(a, b, offset, length);
+        return ScalarDistances.cosineDistance(a, b, offset, length);
+    }
+
+    static float dot(float[] a, ByteBuffer b, int offset, int length) {
+        if (VECTORIZED_BUFFERS)
+            return VectorizedDistances.dot(a, b, offset, length);
+        return ScalarDistances.dot(a, b, offset, length);
+    }
+
+    static float squaredDistance(float[] a, ByteBuffer b, int offset, int length) {
+        if (VECTORIZED_BUFFERS)
+            return VectorizedDistances.squaredDistance(a, b, offset, length);
+        return ScalarDistances.squaredDistance(a, b, offset, length);
+    }
+
+    static float squaredDistanceBounded(float[] a, ByteBuffer b, int offset, int length, float threshold) {
+        if (VECTORIZED_BUFFERS)
+            return VectorizedDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+        return ScalarDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+    }
+
+    static double cosineDistance(double[] a, double[] b, int offset, int length) {
+        if (VECTORIZED)
+            return VectorizedDistances.cosineDistance(a, b, offset, length);
+        return ScalarDistances.cosineDistance(a, b, offset, length);
+    }
+
+    static double dot(double[] a, double[] b, int offset, int length) {
+        if (VECTORIZED)
+            return VectorizedDistances.dot(a, b, offset, length);
+        return ScalarDistances.dot(a, b, offset, length);
+    }
+
+    static double squaredDistance(double[] a, double[] b, int offset, int length) {
+        if (VECTORIZED)
+            return VectorizedDistances.squaredDistance(a, b, offset, length);
+        return ScalarDistances.squaredDistance(a, b, offset, length);
+    }
+
+    static double cosineDistance(double[] a, ByteBuffer b, int offset, int length) {
+        if (VECTORIZED_BUFFERS)
+            return VectorizedDistances.cosineDistance(a, b, offset, length);
+        return ScalarDistances.cosineDistance(a, b, offset, length);
+    }
+
+    static double dot(double[] a, ByteBuffer b, int offset, int length) {
+        if (VECTORIZED_BUFFERS)
+            return VectorizedDistances.dot(a, b, offset, length);
+        return ScalarDistances.dot(a, b, offset, length);
+    }
+
+    static double squaredDistanceBounded(double[] a, double[] b, int offset, int length, double threshold) {
+        if (VECTORIZED)
+            return VectorizedDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+        return ScalarDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+    }
+
+    static double squaredDistanceBounded(double[] a, ByteBuffer b, int offset, int length, double threshold) {
+        if (VECTORIZED_BUFFERS)
+            return VectorizedDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+        return ScalarDistances.squaredDistanceBounded(a, b, offset, length, threshold);
+    }
+}
@@ -0,0 +1,358 @@
+package ai.preferred.cerebro.handler;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Distance kernels on the Vector API, only loaded by {@link DistanceKernels}
+ * once it checked the jdk.incubator.vector module is present. Lanes are
+ * accumulated across the loop and reduced once, the elements past the last
+ * full vector are handled by a scalar loop. Multiplications and additions
+ * are kept separate as fused multiply-adds are emulated, and very slow, on
+ * CPUs without FMA units.
+ * </br>
+ * Vectors read out of a buffer, such as the mapped vectors of a segment, are
+ * loaded straight from it in the buffer's byte order, the offset being in bytes.
+ */
+final class VectorizedDistances {
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorizedDistances() {
+    }
+
+    //below 4 float lanes the JIT runs the Vector API slower than plain loops
+    static boolean isSupported() {
+        return FLOATS.length() >= 4;
+    }
+
+    //FloatVector.fromByteBuffer was replaced by loads from memory segments in JDK 20
+    static boolean isBufferSupported() {
+        try {
+            FloatVector.class.getMethod("fromByteBuffer", VectorSpecies.class, ByteBuffer.class,
+                    int.class, ByteOrder.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    static float cosineDistance(float[] a, float[] b, int offset, int length) {
+        FloatVector dot = FloatVector.zero(FLOATS);
+        FloatVector nru = FloatVector.zero(FLOATS);
+        FloatVector nrv = FloatVector.zero(FLOATS);
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector u = FloatVector.fromArray(FLOATS, a, i);
+            FloatVector v = FloatVector.fromArray(FLOATS, b, offset + i);
+            dot = u.mul(v).add(dot);
+            nru = u.mul(u).add(nru);
+            nrv = v.mul(v).add(nrv);
+        }
+        float d = dot.reduceLanes(VectorOperators.ADD);
+        float nu = nru.reduceLanes(VectorOperators.ADD);
+        float nv = nrv.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            float v = b[offset + i];
+            d += a[i] * v;
+            nu += a[i] * a[i];
+            nv += v * v;
+        }
+        float similarity = d / (float)(Math.sqrt(nu) * Math.sqrt(nv));
+        return 1 - similarity;
+    }
+
+    static float dot(float[] a, float[] b, int offset, int length) {
+        FloatVector dot = FloatVector.zero(FLOATS);
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            dot = FloatVector.fromArray(FLOATS, a, i).mul(FloatVector.fromArray(FLOATS, b, offset + i)).add(dot);
+        }
+        float d = dot.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            d += a[i] * b[offset + i];
+        }
+        return d;
+    }
+
+    static float squaredDistance(float[] a, float[] b, int offset, int length) {
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector diff = FloatVector.fromArray(FLOATS, a, i).sub(FloatVector.fromArray(FLOATS, b, offset + i));
+            sum = diff.mul(diff).add(sum);
+        }
+        float s = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            float diff = a[i] - b[offset + i];
+            s += diff * diff;
+        }
+        return s;
+    }
+
+    //each block of elements is summed by a loop of its own, keeping the
+    //vectors in registers, and its sum compared to the threshold
+    static float squaredDistanceBounded(float[] a, float[] b, int offset, int length, float threshold) {
+        float sum = 0.0f;
+        for (int i = 0; i < length; i += DistanceKernels.VECTORIZED_BOUND_CHECK_INTERVAL) {
+            sum += squaredDistance(a, i, b, offset + i, Math.min(DistanceKernels.VECTORIZED_BOUND_CHECK_INTERVAL, length - i));
+            if (sum > threshold)
+                return sum;
+        }
+        return sum;
+    }
+
+    private static float squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector diff = FloatVector.fromArray(FLOATS, a, aOffset + i).sub(FloatVector.fromArray(FLOATS, b, bOffset + i));
+            sum = diff.mul(diff).add(sum);
+        }
+        float s = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            float diff = a[aOffset + i] - b[bOffset + i];
+            s += diff * diff;
+        }
+        return s;
+    }
+
+    static float cosineDistance(float[] a, ByteBuffer b, int offset, int length) {
+        ByteOrder order = b.order();
+        FloatVector dot = FloatVector.zero(FLOATS);
+        FloatVector nru = FloatVector.zero(FLOATS);
+        FloatVector nrv = FloatVector.zero(FLOATS);
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector u = FloatVector.fromArray(FLOATS, a, i);
+            FloatVector v = FloatVector.fromByteBuffer(FLOATS, b, offset + i * Float.BYTES, order);
+            dot = u.mul(v).add(dot);
+            nru = u.mul(u).add(nru);
+            nrv = v.mul(v).add(nrv);
+        }
+        float d = dot.reduceLanes(VectorOperators.ADD);
+        float nu = nru.reduceLanes(VectorOperators.ADD);
+        float nv = nrv.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            float v = b.getFloat(offset + i * Float.BYTES);
+            d += a[i] * v;
+            nu += a[i] * a[i];
+            nv += v * v;
+        }
+        float similarity = d / (float)(Math.sqrt(nu) * Math.sqrt(nv));
+        return 1 - similarity;
+    }
+
+    static float dot(float[] a, ByteBuffer b, int offset, int length) {
+        ByteOrder order = b.order();
+        FloatVector dot = FloatVector.zero(FLOATS);
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            dot = FloatVector.fromArray(FLOATS, a, i)
+                    .mul(FloatVector.fromByteBuffer(FLOATS, b, offset + i * Float.BYTES, order)).add(dot);
+        }
+        float d = dot.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            d += a[i] * b.getFloat(offset + i * Float.BYTES);
+        }
+        return d;
+    }
+
+    static float squaredDistance(float[] a, ByteBuffer b, int offset, int length) {
+        return squaredDistance(a, 0, b, offset, length);
+    }
+
+    static float squaredDistanceBounded(float[] a, ByteBuffer b, int offset, int length, float threshold) {
+        float sum = 0.0f;
+        for (int i = 0; i < length; i += DistanceKernels.VECTORIZED_BOUND_CHECK_INTERVAL) {
+            sum += squaredDistance(a, i, b, offset + i * Float.BYTES,
+                    Math.min(DistanceKernels.VECTORIZED_BOUND_CHECK_INTERVAL, length - i));
+            if (sum > threshold)
+                return sum;
+        }
+        return sum;
+    }
+
+    private static float squaredDistance(float[] a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        ByteOrder order = b.order();
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector diff = FloatVector.fromArray(FLOATS, a, aOffset + i)
+                    .sub(FloatVector.fromByteBuffer(FLOATS, b, bOffset + i * Float.BYTES, order));
+            sum = diff.mul(diff).add(sum);
+        }
+        float s = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            float diff = a[aOffset + i] - b.getFloat(bOffset + i * Float.BYTES);
+            s += diff * diff;
+        }
+        return s;
+    }
+
+    static double cosineDistance(double[] a, double[] b, int offset, int length) {
+        DoubleVector dot = DoubleVector.zero(DOUBLES);
+        DoubleVector nru = DoubleVector.zero(DOUBLES);
+        DoubleVector nrv = DoubleVector.zero(DOUBLES);
+        int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector u = DoubleVector.fromArray(DOUBLES, a, i);
+            DoubleVector v = DoubleVector.fromArray(DOUBLES, b, offset + i);
+            dot = u.mul(v).add(dot);
+            nru = u.mul(u).add(nru);
+            nrv = v.mul(v).add(nrv);
+        }
+        double d = dot.reduceLanes(VectorOperators.ADD);
+        double nu = nru.reduceLanes(VectorOperators.ADD);
+        double nv = nrv.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            double v = b[offset + i];
+            d += a[i] * v;
+            nu += a[i] * a[i];
+            nv += v * v;
+        }
+        double similarity = d / (Math.sqrt(nu) * Math.sqrt(nv));
+        return 1 - similarity;
+    }
+
+    static double dot(double[] a, double[] b, int offset, int length) {
+        DoubleVector dot = DoubleVector.zero(DOUBLES);
+        int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            dot = DoubleVector.fromArray(DOUBLES, a, i).mul(DoubleVector.fromArray(DOUBLES, b, offset + i)).add(dot);
+        }
+        double d = dot.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            d += a[i] * b[offset + i];
+        }
+        return d;
+    }
+
+    static double squaredDistance(double[] a, double[] b, int offset, int length) {
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector diff = DoubleVector.fromArray(DOUBLES, a, i).sub(DoubleVector.fromArray(DOUBLES, b, offset + i));
+            sum = diff.mul(diff).add(sum);
+        }
+        double s = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            double diff = a[i] - b[offset + i];
+            s += diff * diff;
+        }
+        return s;
+    }
+
+    static double cosineDistance(double[] a, ByteBuffer b, int offset, int length) {
+        ByteOrder order = b.order();
+        DoubleVector dot = DoubleVector.zero(DOUBLES);
+        DoubleVector nru = DoubleVector.zero(DOUBLES);
+        DoubleVector nrv = DoubleVector.zero(DOUBLES);
+        int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector u = DoubleVector.fromArray(DOUBLES, a, i);
+            DoubleVector v = DoubleVector.fromByteBuffer(DOUBLES, b, offset + i * Double.BYTES, order);
+            dot = u.mul(v).add(dot);
+            nru = u.mul(u).add(nru);
+            nrv = v.mul(v).add(nrv);
+        }
+        double d = dot.reduceLanes(VectorOperators.ADD);
+        double nu = nru.reduceLanes(VectorOperators.ADD);
+        double nv = nrv.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            double v = b.getDouble(offset + i * Double.BYTES);
+            d += a[i] * v;
+            nu += a[i] * a[i];
+            nv += v * v;
+        }
+        double similarity = d / (Math.sqrt(nu) * Math.sqrt(nv));
+        return 1 - similarity;
+    }
+
+    static double dot(double[] a, ByteBuffer b, int offset, int length) {
+        ByteOrder order = b.order();
+        DoubleVector dot = DoubleVector.zero(DOUBLES);
+        int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            dot = DoubleVector.fromArray(DOUBLES, a, i)
+                    .mul(DoubleVector.fromByteBuffer(DOUBLES, b, offset + i * Double.BYTES, order)).add(dot);
+        }
+        double d = dot.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            d += a[i] * b.getDouble(offset + i * Double.BYTES);
+        }
+        return d;
+    }
+
+    static double squaredDistanceBounded(double[] a, double[] b, int offset, int length, double threshold) {
+        double sum = 0.0;
+        for (int i = 0; i < length; i += DistanceKernels.VECTORIZED_BOUND_CHECK_INTERVAL) {
+            sum += squaredDistance(a, i, b, offset + i, Math.min(DistanceKernels.VECTORIZED_BOUND_CHECK_INTERVAL, length - i));
+            if (sum > threshold)
+                return sum;
+        }
+        return sum;
+    }
+
+    private static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector diff = DoubleVector.fromArray(DOUBLES, a, aOffset + i).sub(DoubleVector.fromArray(DOUBLES, b, bOffset + i));
+            sum = diff.mul(diff).add(sum);
+        }
+        double s = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            double diff = a[aOffset + i] - b[bOffset + i];
+            s += diff * diff;
+        }
+        return s;
+    }
+
+    static double squaredDistanceBounded(double[] a, ByteBuffer b, int offset, int length, double threshold) {
+        double sum = 0.0;
+        for (int i = 0; i < length; i += DistanceKernels.VECTORIZED_BOUND_CHECK_INTERVAL) {
+            sum += squaredDistance(a, i, b, offset + i * Double.BYTES,
+                    Math.min(DistanceKernels.VECTORIZED_BOUND_CHECK_INTERVAL, length - i));
+            if (sum > threshold)
+                return sum;
+        }
+        return sum;
+    }
+
+    private static double squaredDistance(double[] a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        ByteOrder order = b.order();
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int bound = DOUBLES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector diff = DoubleVector.fromArray(DOUBLES, a, aOffset + i)
+                    .sub(DoubleVector.fromByteBuffer(DOUBLES, b, bOffset + i * Double.BYTES, order));
+            sum = diff.mul(diff).add(sum);
+        }
+        double s = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            double diff = a[aOffset + i] - b.getDouble(bOffset + i * Double.BYTES);
+            s += diff * diff;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,292 @@
+package ai.preferred.cerebro.handler;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDistances {
+    //not a multiple of any vector width, so that the scalar tails run too
+    private static final int DIMENSION = 100;
+
+    @Test
+    public void testL2MatchesDefinition() {
+        FloatL2Handler handler = new FloatL2Handler();
+        Random random = new Random(2);
+        for (int n = 0; n < 50; n++) {
+            float[] a = gaussian(random, DIMENSION);
+            float[] b = gaussian(random, DIMENSION);
+            double expected = 0;
+            for (int i = 0; i < DIMENSION; i++)
+                expected += (a[i] - b[i]) * (double) (a[i] - b[i]);
+            assertEquals(expected, handler.distance(a, b), 1e-4 * expected);
+        }
+    }
+
+    @Test
+    public void testInnerProductMatchesDefinition() {
+        FloatInnerProductHandler handler = new FloatInnerProductHandler();
+        Random random = new Random(3);
+        for (int n = 0; n < 50; n++) {
+            float[] a = gaussian(random, DIMENSION);
+            float[] b = gaussian(random, DIMENSION);
+            double dot = 0;
+            for (int i = 0; i < DIMENSION; i++)
+                dot += a[i] * (double) b[i];
+            assertEquals(-dot, handler.distance(a, b), 1e-4);
+            assertEquals(dot, handler.score(handler.distance(a, b)), 1e-4);
+        }
+    }
+
+    @Test
+    public void testCosineMatchesDefinition() {
+        FloatCosineHandler cosine = new FloatCosineHandler();
+        FloatNormalizedCosineHandler normalized = new FloatNormalizedCosineHandler();
+        Random random = new Random(4);
+        for (int n = 0; n < 50; n++) {
+            float[] a = gaussian(random, DIMENSION);
+            float[] b = gaussian(random, DIMENSION);
+            double dot = 0, normA = 0, normB = 0;
+            for (int i = 0; i < DIMENSION; i++) {
+                dot += a[i] * (double) b[i];
+                normA += a[i] * (double) a[i];
+                normB += b[i] * (double) b[i];
+            }
+            double expected = 1 - dot / Math.sqrt(normA * normB);
+            assertEquals(expected, cosine.distance(a, b), 1e-5);
+            //the normalized handler agrees once its vectors are prepared
+            assertEquals(expected, normalized.distance(normalized.prepare(a), normalized.prepare(b)), 1e-5);
+        }
+    }
+
+    //array, slab and buffer layouts, and the expansion quantizers use, give the same distance
+    @Test
+    public void testLayoutsAgree() {
+        Random random = new Random(5);
+        for (QuantizableHandler<float[]> handler : floatHandlers()) {
+            float[][] vectors = new float[50][];
+            for (int i = 0; i < vectors.length; i++)
+                vectors[i] = handler.prepare(gaussian(random, DIMENSION));
+            float[] slab = handler.toSlab(vectors, DIMENSION);
+            ByteBuffer data = toBuffer(handler, vectors);
+            float[] a = handler.prepare(gaussian(random, DIMENSION));
+            for (int i = 0; i < vectors.length; i++) {
+                float distance = handler.distance(a, vectors[i]);
+                String name = handler.getClass().getSimpleName();
+                assertEquals(name, distance, handler.distance(a, slab, i * DIMENSION), 1e-5f);
+                assertEquals(name, distance, handler.distance(a, data, i * DIMENSION * Float.BYTES), 1e-5f);
+                double dot = 0, normA = 0, normB = 0;
+                for (int j = 0; j < DIMENSION; j++) {
+                    dot += a[j] * (double) vectors[i][j];
+                    normA += a[j] * (double) a[j];
+                    normB += vectors[i][j] * (double) vectors[i][j];
+                }
+                assertEquals(name, distance, handler.distance(dot, normA, normB), 1e-4f * Math.max(1, Math.abs(distance)));
+            }
+        }
+    }
+
+    @Test
+    public void testBoundedMatchesDistance() {
+        Random random = new Random(6);
+        for (VecHandler<float[]> handler : floatHandlers()) {
+            float[][] vectors = new float[100][];
+            for (int i = 0; i < vectors.length; i++)
+                vectors[i] = handler.prepare(gaussian(random, DIMENSION));
+            float[] slab = handler.toSlab(vectors, DIMENSION);
+            ByteBuffer data = toBuffer(handler, vectors);
+            float[] a = vectors[0];
+            //thresholds around the distances themselves, where stopping early matters
+            float median = handler.distance(a, vectors[vectors.length / 2]);
+            float[] thresholds = {median * 0.5f, median, median * 1.5f, Float.MAX_VALUE};
+            for (int i = 0; i < vectors.length; i++) {
+                float distance = handler.distance(a, vectors[i]);
+                for (float threshold : thresholds) {
+                    assertBounded(distance, handler.distanceBounded(a, vectors[i], threshold), threshold);
+                    assertBounded(distance, handler.distanceBounded(a, slab, i * DIMENSION, threshold), threshold);
+                    assertBounded(distance, handler.distanceBounded(a, data, i * DIMENSION * Float.BYTES, threshold), threshold);
+                }
+            }
+        }
+    }
+
+    //the Java 17 kernels are only on the test classpath when the build runs on
+    //Java 17 or later, and only usable with the jdk.incubator.vector module
+    @Test
+    public void testVectorizedMatchesScalar() throws Exception {
+        Class<?> vectorized;
+        try {
+            vectorized = Class.forName("ai.preferred.cerebro.handler.VectorizedDistances");
+            Assume.assumeTrue((Boolean) vectorized.getDeclaredMethod("isSupported").invoke(null));
+        } catch (ClassNotFoundException | LinkageError e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        boolean buffers = (Boolean) vectorized.getDeclaredMethod("isBufferSupported").invoke(null);
+        Random random = new Random(7);
+        for (int length : new int[]{1, 3, 8, 16, 17, 64, 100, 257}) {
+            float[] a = gaussian(random, length);
+            int offset = 5;
+            float[] b = new float[offset + length];
+            System.arraycopy(gaussian(random, length), 0, b, offset, length);
+            ByteBuffer data = ByteBuffer.allocate(b.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            data.asFloatBuffer().put(b);
+            int byteOffset = offset * Float.BYTES;
+
+            assertClose(ScalarDistances.dot(a, b, offset, length), invoke(vectorized, "dot", a, b, offset, length));
+            assertClose(ScalarDistances.squaredDistance(a, b, offset, length),
+                    invoke(vectorized, "squaredDistance", a, b, offset, length));
+            assertClose(ScalarDistances.cosineDistance(a, b, offset, length),
+                    invoke(vectorized, "cosineDistance", a, b, offset, length));
+            float squared = ScalarDistances.squaredDistance(a, b, offset, length);
+            for (float threshold : new float[]{squared * 0.5f, squared * 2})
+                assertBounded(squared, (Float) vectorized.getDeclaredMethod("squaredDistanceBounded",
+                        float[].class, float[].class, int.class, int.class, float.class)
+                        .invoke(null, a, b, offset, length, threshold), threshold);
+            if (buffers) {
+                assertClose(ScalarDistances.dot(a, data, byteOffset, length),
+                        invoke(vectorized, "dot", a, data, byteOffset, length));
+                assertClose(ScalarDistances.squaredDistance(a, data, byteOffset, length),
+                        invoke(vectorized, "squaredDistance", a, data, byteOffset, length));
+                assertClose(ScalarDistances.cosineDistance(a, data, byteOffset, length),
+                        invoke(vectorized, "cosineDistance", a, data, byteOffset, length));
+            }
+
+            double[] da = new double[length];
+            double[] db = new double[offset + length];
+            for (int i = 0; i < length; i++) {
+                da[i] = a[i];
+                db[offset + i] = b[offset + i];
+            }
+            Method dot = vectorized.getDeclaredMethod("dot", double[].class, double[].class, int.class, int.class);
+            assertEquals(ScalarDistances.dot(da, db, offset, length), (Double) dot.invoke(null, da, db, offset, length), 1e-9);
+            Method squaredDistance = vectorized.getDeclaredMethod("squaredDistance",
+                    double[].class, double[].class, int.class, int.class);
+            assertEquals(ScalarDistances.squaredDistance(da, db, offset, length),
+                    (Double) squaredDistance.invoke(null, da, db, offset, length), 1e-9);
+            Method cosineDistance = vectorized.getDeclaredMethod("cosineDistance",
+                    double[].class, double[].class, int.class, int.class);
+            assertEquals(ScalarDistances.cosineDistance(da, db, offset, length),
+                    (Double) cosineDistance.invoke(null, da, db, offset, length), 1e-9);
+            if (buffers) {
+                ByteBuffer doubles = ByteBuffer.allocate(db.length * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                doubles.asDoubleBuffer().put(db);
+                int doubleOffset = offset * Double.BYTES;
+                assertEquals(ScalarDistances.dot(da, doubles, doubleOffset, length), (Double) vectorized.getDeclaredMethod("dot",
+                        double[].class, ByteBuffer.class, int.class, int.class).invoke(null, da, doubles, doubleOffset, length), 1e-9);
+                assertEquals(ScalarDistances.cosineDistance(da, doubles, doubleOffset, length), (Double) vectorized.getDeclaredMethod(
+                        "cosineDistance", double[].class, ByteBuffer.class, int.class, int.class)
+                        .invoke(null, da, doubles, doubleOffset, length), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testNormalizedCosineBoundedMatchesDistance() {
+        FloatNormalizedCosineHandler handler = new FloatNormalizedCosineHandler();
+        Random random = new Random(1);
+        float[][] vectors = new float[200][];
+        for (int i = 0; i < vectors.length; i++)
+            vectors[i] = handler.prepare(gaussian(random, DIMENSION));
+        //prepare() leaves zero vectors at zero, their distance to anything is one
+        vectors[0] = handler.prepare(new float[DIMENSION]);
+        float[] slab = new float[vectors.length * DIMENSION];
+        ByteBuffer data = ByteBuffer.allocate(vectors.length * DIMENSION * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < vectors.length; i++) {
+            System.arraycopy(vectors[i], 0, slab, i * DIMENSION, DIMENSION);
+            handler.write(data, vectors[i]);
+        }
+
+        float[] thresholds = {0f, 0.5f, 0.9f, 1f, 1.1f, 2f};
+        for (float[] a : new float[][]{vectors[0], vectors[1], vectors[2]}) {
+            for (int i = 0; i < vectors.length; i++) {
+                float distance = handler.distance(a, vectors[i]);
+                for (float threshold : thresholds) {
+                    assertBounded(distance, handler.distanceBounded(a, vectors[i], threshold), threshold);
+                    assertBounded(distance, handler.distanceBounded(a, slab, i * DIMENSION, threshold), threshold);
+                    assertBounded(distance, handler.distanceBounded(a, data, i * DIMENSION * Float.BYTES, threshold), threshold);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDoubleNormalizedCosineBoundedMatchesDistance() {
+        DoubleNormalizedCosineHandler handler = new DoubleNormalizedCosineHandler();
+        Random random = new Random(1);
+        double[][] vectors = new double[200][];
+        for (int i = 0; i < vectors.length; i++) {
+            float[] vector = gaussian(random, DIMENSION);
+            vectors[i] = new double[DIMENSION];
+            for (int j = 0; j < DIMENSION; j++)
+                vectors[i][j] = vector[j];
+            vectors[i] = handler.prepare(vectors[i]);
+        }
+        vectors[0] = handler.prepare(new double[DIMENSION]);
+        double[] slab = new double[vectors.length * DIMENSION];
+        ByteBuffer data = ByteBuffer.allocate(vectors.length * DIMENSION * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < vectors.length; i++) {
+            System.arraycopy(vectors[i], 0, slab, i * DIMENSION, DIMENSION);
+            handler.write(data, vectors[i]);
+        }
+
+        float[] thresholds = {0f, 0.5f, 0.9f, 1f, 1.1f, 2f};
+        for (double[] a : new double[][]{vectors[0], vectors[1], vectors[2]}) {
+            for (int i = 0; i < vectors.length; i++) {
+                float distance = handler.distance(a, vectors[i]);
+                for (float threshold : thresholds) {
+                    assertBounded(distance, handler.distanceBounded(a, vectors[i], threshold), threshold);
+                    assertBounded(distance, handler.distanceBounded(a, slab, i * DIMENSION, threshold), threshold);
+                    assertBounded(distance, handler.distanceBounded(a, data, i * DIMENSION * Double.BYTES, threshold), threshold);
+                }
+            }
+        }
+    }
+
+    //a bounded distance is exact when not above the threshold, and above it otherwise
+    private static void assertBounded(float distance, float bounded, float threshold) {
+        float tolerance = 1e-5f * Math.max(1, Math.abs(distance));
+        if (bounded <= threshold)
+            assertEquals(distance, bounded, tolerance);
+        else
+            assertTrue(distance + " not above " + threshold, distance > threshold - tolerance);
+    }
+
+    //lanes are summed in another order than the scalar loop
+    private static void assertClose(float expected, float actual) {
+        assertEquals(expected, actual, 1e-4f * Math.max(1, Math.abs(expected)));
+    }
+
+    private static float invoke(Class<?> kernels, String name, float[] a, Object b, int offset, int length)
+            throws Exception {
+        return (Float) kernels.getDeclaredMethod(name, float[].class, b.getClass() == float[].class
+                ? float[].class : ByteBuffer.class, int.class, int.class).invoke(null, a, b, offset, length);
+    }
+
+    private static QuantizableHandler<float[]>[] floatHandlers() {
+        @SuppressWarnings("unchecked")
+        QuantizableHandler<float[]>[] handlers = (QuantizableHandler<float[]>[]) new QuantizableHandler<?>[]{new FloatL2Handler(),
+                new FloatInnerProductHandler(), new FloatCosineHandler(), new FloatNormalizedCosineHandler()};
+        return handlers;
+    }
+
+    private static ByteBuffer toBuffer(VecHandler<float[]> handler, float[][] vectors) {
+        ByteBuffer data = ByteBuffer.allocate(vectors.length * DIMENSION * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (float[] vector : vectors)
+            handler.write(data, vector);
+        return data;
+    }
+
+    private static float[] gaussian(Random random, int dimension) {
+        float[] vector = new float[dimension];
+        for (int i = 0; i < dimension; i++)
+            vector[i] = (float) random.nextGaussian();
+        return vector;
+    }
+}
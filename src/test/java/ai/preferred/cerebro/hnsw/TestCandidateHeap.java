@@ -0,0 +1,60 @@
+package ai.preferred.cerebro.hnsw;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCandidateHeap {
+
+    @Test
+    public void testOrders() {
+        Random random = new Random(1);
+        float[] distances = new float[1000];
+        //starts below its final size so that it has to grow
+        CandidateHeap max = new CandidateHeap(4, true);
+        CandidateHeap min = new CandidateHeap(4, false);
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = (float) random.nextGaussian();
+            max.push(i, distances[i]);
+            min.push(i, distances[i]);
+        }
+        float[] sorted = distances.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            assertEquals(sorted[i], min.topDistance(), 0f);
+            assertEquals(sorted[i], distances[min.pop()], 0f);
+            assertEquals(sorted[sorted.length - 1 - i], max.topDistance(), 0f);
+            assertEquals(sorted[sorted.length - 1 - i], distances[max.pop()], 0f);
+        }
+        assertTrue(min.isEmpty());
+        assertTrue(max.isEmpty());
+    }
+
+    //replaceTop() keeps the k nearest, as the searches use it
+    @Test
+    public void testReplaceTop() {
+        Random random = new Random(2);
+        int k = 10;
+        float[] distances = new float[500];
+        CandidateHeap results = new CandidateHeap(k, true);
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = random.nextFloat();
+            if (results.size() < k)
+                results.push(i, distances[i]);
+            else if (results.topDistance() > distances[i])
+                results.replaceTop(i, distances[i]);
+        }
+        float[] sorted = distances.clone();
+        Arrays.sort(sorted);
+        for (int i = k - 1; i >= 0; i--)
+            assertEquals(sorted[i], distances[results.pop()], 0f);
+
+        results.push(3, 1f);
+        results.clear();
+        assertEquals(0, results.size());
+    }
+}
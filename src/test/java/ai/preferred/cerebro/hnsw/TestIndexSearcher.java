@@ -0,0 +1,375 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.FloatL2Handler;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.ThreadInterruptedException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Searches of an index of several leaf segments against brute force.
+ */
+public class TestIndexSearcher {
+    private static final int COUNT = 3000;
+    private static final int DIMENSION = 16;
+    private static final int K = 10;
+    private static final FloatL2Handler HANDLER = new FloatL2Handler();
+
+    @ClassRule
+    public static TemporaryFolder sharedFolder = new TemporaryFolder();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static float[][] vectors;
+    private static float[][] queries;
+    private static String indexDir;
+    private static HnswIndexSearcher<float[]> searcher;
+
+    @BeforeClass
+    public static void buildIndex() throws Exception {
+        Random random = new Random(1);
+        vectors = TestVectors.gaussian(random, COUNT, DIMENSION);
+        queries = TestVectors.gaussian(random, 50, DIMENSION);
+        indexDir = sharedFolder.newFolder().getPath();
+        build(indexDir, vectors, false);
+        searcher = new HnswIndexSearcher<>(indexDir);
+        assertTrue(searcher.nleaves > 1);
+    }
+
+    @AfterClass
+    public static void closeIndex() {
+        searcher.close();
+    }
+
+    @Test
+    public void testExactMatchesBruteForce() {
+        for (float[] query : queries) {
+            int[] expected = TestVectors.nearest(HANDLER, vectors, query, K, null);
+            assertArrayEquals(expected, ids(searcher.searchExact(query, K)));
+        }
+        BatchTopHits batch = searcher.searchBatchExact(queries, K);
+        for (int q = 0; q < queries.length; q++)
+            assertArrayEquals(TestVectors.nearest(HANDLER, vectors, queries[q], K, null), ids(batch, q));
+    }
+
+    @Test
+    public void testSearchRecall() {
+        double recall = 0;
+        for (float[] query : queries) {
+            TopDocs hits = searcher.search(query, K);
+            recall += TestVectors.recall(TestVectors.nearest(HANDLER, vectors, query, K, null), ids(hits));
+            //scores are the handler's of the distances, best first
+            for (int i = 0; i < hits.scoreDocs.length; i++) {
+                float distance = HANDLER.distance(query, vectors[hits.scoreDocs[i].doc - TestVectors.ID_OFFSET]);
+                assertEquals(HANDLER.score(distance), hits.scoreDocs[i].score, 1e-5f);
+                if (i > 0)
+                    assertTrue(hits.scoreDocs[i - 1].score >= hits.scoreDocs[i].score);
+            }
+        }
+        assertTrue("recall " + recall / queries.length, recall / queries.length >= 0.9);
+    }
+
+    //searches running at once each borrow their own scratch and find what they find alone
+    @Test
+    public void testConcurrentSearchesMatchSequential() throws Exception {
+        SearchParams params = new SearchParams(K);
+        params.setSharedPruning(false);
+        List<int[]> expected = new ArrayList<>();
+        for (float[] query : queries)
+            expected.add(ids(searcher.search(query, params)));
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<int[]>> found = new ArrayList<>();
+            for (int round = 0; round < 4; round++) {
+                for (float[] query : queries)
+                    found.add(callers.submit(() -> ids(searcher.search(query, params))));
+            }
+            for (int i = 0; i < found.size(); i++)
+                assertArrayEquals(expected.get(i % queries.length), found.get(i).get());
+        } finally {
+            callers.shutdown();
+        }
+    }
+
+    //k and ef given with a query override the ones the index was saved with
+    @Test
+    public void testSearchParamsOverrideConfiguration() {
+        int k = 25;
+        SearchParams params = new SearchParams(k);
+        params.setEf(200);
+        double recall = 0;
+        for (float[] query : queries) {
+            TopDocs hits = searcher.search(query, params);
+            assertEquals(k, hits.scoreDocs.length);
+            recall += TestVectors.recall(TestVectors.nearest(HANDLER, vectors, query, k, null), ids(hits));
+        }
+        assertTrue("recall " + recall / queries.length, recall / queries.length >= 0.95);
+    }
+
+    @Test
+    public void testFilterMatchesBruteForce() {
+        for (int modulo : new int[]{2, 10, 100}) {
+            IntPredicate filter = id -> id % modulo == 0;
+            FixedBitSet accepted = new FixedBitSet(TestVectors.ID_OFFSET + COUNT);
+            for (int id = 0; id < accepted.length(); id++) {
+                if (filter.test(id))
+                    accepted.set(id);
+            }
+            double recall = 0;
+            for (float[] query : queries) {
+                int[] expected = TestVectors.nearest(HANDLER, vectors, query, K, filter);
+                SearchParams exact = new SearchParams(K);
+                exact.setExact(true);
+                exact.setFilter(filter);
+                assertArrayEquals(expected, ids(searcher.search(query, exact)));
+
+                int[] found = ids(searcher.searchFiltered(query, K, filter));
+                for (int id : found)
+                    assertTrue(filter.test(id));
+                recall += TestVectors.recall(expected, found);
+                //the same ids given as Lucene bits
+                for (int id : ids(searcher.search(query, K, accepted)))
+                    assertTrue(accepted.get(id));
+            }
+            assertTrue("recall " + recall / queries.length + " keeping 1/" + modulo,
+                    recall / queries.length >= 0.9);
+        }
+    }
+
+    @Test
+    public void testRadiusMatchesBruteForce() {
+        double recall = 0;
+        for (float[] query : queries) {
+            int[] nearest = TestVectors.nearest(HANDLER, vectors, query, 30, null);
+            float radius = HANDLER.distance(query, vectors[nearest[nearest.length - 1] - TestVectors.ID_OFFSET]);
+            Map<Integer, Float> found = Collections.synchronizedMap(new HashMap<>());
+            searcher.searchRadius(query, radius, found::put);
+            for (Map.Entry<Integer, Float> match : found.entrySet()) {
+                float distance = HANDLER.distance(query, vectors[match.getKey() - TestVectors.ID_OFFSET]);
+                assertTrue(distance <= radius);
+                assertEquals(HANDLER.score(distance), match.getValue(), 1e-5f);
+            }
+            int[] ids = found.keySet().stream().mapToInt(Integer::intValue).toArray();
+            recall += TestVectors.recall(nearest, ids);
+        }
+        assertTrue("recall " + recall / queries.length, recall / queries.length >= 0.9);
+    }
+
+    @Test
+    public void testBatchMatchesBruteForce() {
+        BatchTopHits batch = searcher.searchBatch(queries, K);
+        assertEquals(queries.length, batch.size());
+        double recall = 0;
+        for (int q = 0; q < queries.length; q++)
+            recall += TestVectors.recall(TestVectors.nearest(HANDLER, vectors, queries[q], K, null), ids(batch, q));
+        assertTrue("recall " + recall / queries.length, recall / queries.length >= 0.9);
+
+        //without the bound shared across segments a batch finds what single searches find
+        SearchParams params = new SearchParams(K);
+        params.setSharedPruning(false);
+        BatchTopHits unpruned = searcher.searchBatch(queries, params);
+        for (int q = 0; q < queries.length; q++)
+            assertArrayEquals(ids(searcher.search(queries[q], params)), ids(unpruned, q));
+    }
+
+    //workers splitting a segment share its visited set, reused from one query to the next
+    @Test
+    public void testSegmentParallelismRecall() {
+        SearchParams params = new SearchParams(K);
+        params.setSharedPruning(false);
+        params.setSegmentParallelism(4);
+        for (int pass = 0; pass < 2; pass++) {
+            double recall = 0;
+            for (float[] query : queries)
+                recall += TestVectors.recall(TestVectors.nearest(HANDLER, vectors, query, K, null),
+                        ids(searcher.search(query, params)));
+            assertTrue("recall " + recall / queries.length, recall / queries.length >= 0.9);
+        }
+    }
+
+    //an interrupted split search waits for its workers before its scratch
+    //goes back to the pool, and leaves the interrupt flag set
+    @Test
+    public void testInterruptedSegmentParallelism() {
+        //workers are held by the executor, so the calling thread runs them all
+        List<Runnable> held = new ArrayList<>();
+        try (HnswIndexSearcher<float[]> holding = new HnswIndexSearcher<>(indexDir, held::add)) {
+            LeafSegmentSearcher<float[]> leaf = (LeafSegmentSearcher<float[]>) holding.leaves[0];
+            SearchParams params = new SearchParams(K);
+            params.setSegmentParallelism(4);
+            TopDocs expected = leaf.findNearest(queries[0], params);
+            held.clear();
+            Thread.currentThread().interrupt();
+            try {
+                leaf.findNearest(queries[0], params);
+                fail("search not interrupted");
+            } catch (ThreadInterruptedException e) {
+                assertTrue(Thread.interrupted());
+            }
+            //workers picked up after the search gave up find nothing left to do
+            assertFalse(held.isEmpty());
+            held.forEach(Runnable::run);
+            assertArrayEquals(ids(expected), ids(leaf.findNearest(queries[0], params)));
+        }
+    }
+
+    @Test
+    public void testAsyncMatchesSync() throws Exception {
+        SearchParams params = new SearchParams(K);
+        params.setSharedPruning(false);
+        List<CompletableFuture<TopDocs>> futures = new ArrayList<>();
+        for (float[] query : queries)
+            futures.add(searcher.searchAsync(query, params));
+        for (int q = 0; q < queries.length; q++)
+            assertArrayEquals(ids(searcher.search(queries[q], params)), ids(futures.get(q).get()));
+    }
+
+    @Test
+    public void testSearchIntoArraysMatchesTopDocs() {
+        SearchParams params = new SearchParams(K);
+        params.setSharedPruning(false);
+        int[] ids = new int[K];
+        float[] scores = new float[K];
+        for (float[] query : queries) {
+            TopDocs hits = searcher.search(query, params);
+            int count = searcher.search(query, params, ids, scores);
+            assertEquals(hits.scoreDocs.length, count);
+            for (int i = 0; i < count; i++) {
+                assertEquals(hits.scoreDocs[i].doc, ids[i]);
+                assertEquals(hits.scoreDocs[i].score, scores[i], 0f);
+            }
+        }
+    }
+
+    //results cached for an index are dropped once a searcher opens a newer state of it
+    @Test
+    public void testQueryCacheInvalidatedOnReopen() throws Exception {
+        String dir = folder.newFolder().getPath();
+        float[][] small = TestVectors.gaussian(new Random(2), 500, DIMENSION);
+        //a reopened writer adds to the leaves of an index built outside low memory mode
+        HnswConfiguration configuration = new HnswConfiguration(HANDLER, 1000);
+        HnswIndexWriter<float[]> builder = new HnswIndexWriter<>(configuration, dir);
+        builder.addAll(TestVectors.items(small));
+        builder.save();
+        float[] query = queries[0];
+        QueryCache cache = new QueryCache(1 << 20);
+        TopDocs first;
+        try (HnswIndexSearcher<float[]> before = new HnswIndexSearcher<>(dir)) {
+            before.setQueryCache(cache);
+            first = before.search(query, K);
+            TopDocs second = before.search(query, K);
+            assertEquals(1, cache.getHitCount());
+            assertArrayEquals(ids(first), ids(second));
+        }
+
+        HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(dir);
+        List<Item<float[]>> added = new ArrayList<>();
+        added.add(new Item<>(-1, query.clone()));
+        writer.addAll(added);
+        writer.save();
+        try (HnswIndexSearcher<float[]> after = new HnswIndexSearcher<>(dir)) {
+            after.setQueryCache(cache);
+            assertEquals(0, cache.size());
+            TopDocs fresh = after.search(query, K);
+            assertEquals(-1, fresh.scoreDocs[0].doc);
+            assertEquals(1, cache.getHitCount());
+        }
+    }
+
+    //an index rebuilt in place with as many items in every leaf must not
+    //be answered with the results cached for the one it replaced
+    @Test
+    public void testQueryCacheMissesRebuiltIndex() throws Exception {
+        File dir = folder.newFolder();
+        QueryCache cache = new QueryCache(1 << 20);
+        SearchParams params = new SearchParams(K);
+        params.setExact(true);
+        for (int seed = 4; seed < 6; seed++) {
+            for (File file : dir.listFiles())
+                assertTrue(file.delete());
+            float[][] data = TestVectors.gaussian(new Random(seed), 500, DIMENSION);
+            build(dir.getPath(), data, true);
+            try (HnswIndexSearcher<float[]> rebuilt = new HnswIndexSearcher<>(dir.getPath())) {
+                rebuilt.setQueryCache(cache);
+                assertArrayEquals(TestVectors.nearest(HANDLER, data, queries[0], K, null),
+                        ids(rebuilt.search(queries[0], params)));
+            }
+        }
+        assertEquals(0, cache.getHitCount());
+    }
+
+    //renumbering the nodes changes where they are stored, not what searches find
+    @Test
+    public void testReorderKeepsResults() throws Exception {
+        String dir = folder.newFolder().getPath();
+        float[][] small = TestVectors.gaussian(new Random(3), 1000, DIMENSION);
+        HnswIndexWriter<float[]> writer = build(dir, small, true);
+        List<int[]> before = new ArrayList<>();
+        try (HnswIndexSearcher<float[]> original = new HnswIndexSearcher<>(dir)) {
+            for (float[] query : queries)
+                before.add(ids(original.search(query, K)));
+        }
+        writer.reorder();
+        writer.save();
+        try (HnswIndexSearcher<float[]> reordered = new HnswIndexSearcher<>(dir)) {
+            for (int q = 0; q < queries.length; q++) {
+                assertArrayEquals(before.get(q), ids(reordered.search(queries[q], K)));
+                assertArrayEquals(TestVectors.nearest(HANDLER, small, queries[q], K, null),
+                        ids(reordered.searchExact(queries[q], K)));
+            }
+        }
+    }
+
+    //leaves of a third of the vectors each, grown as they fill up
+    private static HnswIndexWriter<float[]> build(String dir, float[][] data, boolean singleLeaf) throws Exception {
+        HnswConfiguration configuration = new HnswConfiguration(HANDLER, singleLeaf ? data.length : (data.length + 2) / 3);
+        configuration.setM(12);
+        configuration.setEfConstruction(100);
+        configuration.setEf(50);
+        configuration.setLowMemoryMode(true);
+        HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration, dir);
+        writer.singleSegmentAddAll(TestVectors.items(data), 2, (workDone, max) -> { },
+                ConcurrentWriter.DEFAULT_PROGRESS_UPDATE_INTERVAL);
+        writer.save();
+        return writer;
+    }
+
+    private static int[] ids(TopDocs hits) {
+        int[] ids = new int[hits.scoreDocs.length];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = hits.scoreDocs[i].doc;
+        return ids;
+    }
+
+    private static int[] ids(BatchTopHits hits, int query) {
+        int[] ids = new int[hits.count(query)];
+        for (int rank = 0; rank < ids.length; rank++)
+            ids[rank] = hits.id(query, rank);
+        return ids;
+    }
+}
@@ -0,0 +1,26 @@
+package ai.preferred.cerebro.hnsw;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestPruningBound {
+
+    @Test
+    public void testOfferKeepsMinimum() {
+        PruningBound bound = new PruningBound(3);
+        assertEquals(Float.POSITIVE_INFINITY, bound.get(0), 0f);
+        bound.offer(0, 2f);
+        bound.offer(0, 3f);
+        assertEquals(2f, bound.get(0), 0f);
+        //negative distances, such as inner products, order as floats do
+        bound.offer(1, -1f);
+        bound.offer(1, -5f);
+        bound.offer(1, 0f);
+        assertEquals(-5f, bound.get(1), 0f);
+        assertEquals(Float.POSITIVE_INFINITY, bound.get(2), 0f);
+        bound.clear();
+        for (int slot = 0; slot < 3; slot++)
+            assertEquals(Float.POSITIVE_INFINITY, bound.get(slot), 0f);
+    }
+}
@@ -0,0 +1,211 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.FloatCosineHandler;
+import ai.preferred.cerebro.handler.FloatL2Handler;
+import ai.preferred.cerebro.handler.QuantizableHandler;
+import ai.preferred.cerebro.handler.VecFloatHandler;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestQuantizers {
+    private static final int COUNT = 2000;
+    private static final int DIMENSION = 32;
+    private static final int K = 10;
+    private static final FloatL2Handler L2 = new FloatL2Handler();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    //codes decode to within half a step of every element, so distances
+    //from a query to the quantized vectors stay close to the exact ones
+    @Test
+    public void testScalarQuantizedDistances() throws Exception {
+        for (QuantizableHandler<float[]> handler : handlers()) {
+            float[][] vectors = TestVectors.gaussian(new Random(1), COUNT, DIMENSION);
+            File file = folder.newFile();
+            ScalarQuantizer.write(file, handler, i -> vectors[i], COUNT, DIMENSION);
+            Quantizer<float[]> quantizer = ScalarQuantizer.load(file, handler);
+            assertEquals(COUNT, quantizer.count());
+            Stats stats = compare(handler, quantizer, vectors);
+            String name = handler.getClass().getSimpleName();
+            assertTrue(name + " error " + stats.relativeError, stats.relativeError < 0.005);
+            assertTrue(name + " recall " + stats.recall, stats.recall >= 0.9);
+        }
+    }
+
+    @Test
+    public void testProductQuantizedDistances() throws Exception {
+        for (QuantizableHandler<float[]> handler : handlers()) {
+            float[][] vectors = TestVectors.gaussian(new Random(2), COUNT, DIMENSION);
+            File file = folder.newFile();
+            ProductQuantizer.write(file, handler, i -> vectors[i], COUNT, DIMENSION, 16);
+            Quantizer<float[]> quantizer = ProductQuantizer.load(file, handler);
+            assertEquals(COUNT, quantizer.count());
+            Stats stats = compare(handler, quantizer, vectors);
+            String name = handler.getClass().getSimpleName();
+            assertTrue(name + " error " + stats.relativeError, stats.relativeError < 0.05);
+            assertTrue(name + " recall " + stats.recall, stats.recall >= 0.7);
+        }
+    }
+
+    //deleted ids are skipped when training, the ranges stay finite
+    @Test
+    public void testScalarSkipsDeletedIds() throws Exception {
+        float[][] vectors = withDeleted(3);
+        File file = folder.newFile();
+        ScalarQuantizer.write(file, L2, i -> vectors[i], vectors.length, DIMENSION);
+        assertFinite(ScalarQuantizer.load(file, L2), vectors);
+    }
+
+    //deleted ids are skipped when training, the centroids stay finite
+    @Test
+    public void testProductSkipsDeletedIds() throws Exception {
+        float[][] vectors = withDeleted(4);
+        File file = folder.newFile();
+        ProductQuantizer.write(file, L2, i -> vectors[i], vectors.length, DIMENSION, 8);
+        assertFinite(ProductQuantizer.load(file, L2), vectors);
+    }
+
+    //the final candidates are reranked with the full vectors
+    @Test
+    public void testScalarRerankRecall() throws Exception {
+        assertRerankRecall(0);
+    }
+
+    @Test
+    public void testProductRerankRecall() throws Exception {
+        assertRerankRecall(16);
+    }
+
+    //a handler whose metric can not be derived from dot products
+    //fails when the index is saved, not on every query after
+    @Test(expected = IllegalArgumentException.class)
+    public void testSaveRejectsUnquantizableHandler() throws Exception {
+        HnswConfiguration configuration = new HnswConfiguration(new ManhattanHandler(), 100);
+        configuration.setScalarQuantization(true);
+        HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration, folder.newFolder().getPath());
+        writer.addAll(TestVectors.items(TestVectors.gaussian(new Random(8), 100, DIMENSION)));
+        writer.save();
+    }
+
+    //with subspaces 0 the index is saved with scalar quantization
+    private void assertRerankRecall(int subspaces) throws Exception {
+        float[][] vectors = TestVectors.gaussian(new Random(5), COUNT, DIMENSION);
+        float[][] queries = TestVectors.gaussian(new Random(6), 50, DIMENSION);
+        String dir = folder.newFolder().getPath();
+        HnswConfiguration configuration = new HnswConfiguration(L2, COUNT);
+        configuration.setM(12);
+        configuration.setEfConstruction(100);
+        configuration.setLowMemoryMode(true);
+        configuration.setScalarQuantization(subspaces == 0);
+        configuration.setProductQuantization(subspaces);
+        HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration, dir);
+        writer.addAll(TestVectors.items(vectors));
+        writer.save();
+        try (HnswIndexSearcher<float[]> searcher = new HnswIndexSearcher<>(dir)) {
+            assertTrue(searcher.leaves[0].quantizer != null);
+            SearchParams params = new SearchParams(K);
+            params.setEf(100);
+            params.setSharedPruning(false);
+            double recall = 0;
+            for (float[] query : queries) {
+                int[] expected = TestVectors.nearest(L2, vectors, query, K, null);
+                int[] ids = new int[K];
+                float[] scores = new float[K];
+                int count = searcher.search(query, params, ids, scores);
+                recall += TestVectors.recall(expected, Arrays.copyOf(ids, count));
+                //reranked scores are the exact ones
+                for (int i = 0; i < count; i++) {
+                    float distance = L2.distance(query, vectors[ids[i] - TestVectors.ID_OFFSET]);
+                    assertEquals(L2.score(distance), scores[i], 1e-5f);
+                }
+            }
+            recall /= queries.length;
+            assertTrue("recall " + recall, recall >= 0.9);
+        }
+    }
+
+    private static final class Stats {
+        double relativeError;
+        double recall;
+    }
+
+    //mean relative error of the quantized distances over the spread of the exact
+    //ones, and recall of the nearest found by quantized distances alone
+    private static Stats compare(QuantizableHandler<float[]> handler, Quantizer<float[]> quantizer, float[][] vectors) {
+        Random random = new Random(7);
+        Stats stats = new Stats();
+        int queries = 20;
+        QuantizedQuery prepared = new QuantizedQuery();
+        for (int q = 0; q < queries; q++) {
+            float[] query = TestVectors.gaussian(random, 1, DIMENSION)[0];
+            quantizer.prepare(query, prepared);
+            float[] exact = new float[vectors.length];
+            float[] approximate = new float[vectors.length];
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            for (int i = 0; i < vectors.length; i++) {
+                exact[i] = handler.distance(query, vectors[i]);
+                approximate[i] = quantizer.distance(prepared, i);
+                min = Math.min(min, exact[i]);
+                max = Math.max(max, exact[i]);
+            }
+            double error = 0;
+            for (int i = 0; i < vectors.length; i++)
+                error += Math.abs(approximate[i] - exact[i]);
+            stats.relativeError += error / vectors.length / (max - min);
+            int[] expected = nearest(exact);
+            stats.recall += TestVectors.recall(expected, nearest(approximate));
+        }
+        stats.relativeError /= queries;
+        stats.recall /= queries;
+        return stats;
+    }
+
+    private static int[] nearest(float[] distances) {
+        return IntStream.range(0, distances.length).boxed()
+                .sorted(Comparator.comparingDouble(i -> distances[i]))
+                .limit(K).mapToInt(Integer::intValue).toArray();
+    }
+
+    //a third of the vectors deleted, as a segment with removals gives them
+    private static float[][] withDeleted(long seed) {
+        float[][] vectors = TestVectors.gaussian(new Random(seed), 100, DIMENSION);
+        for (int i = 0; i < vectors.length; i += 3)
+            vectors[i] = null;
+        return vectors;
+    }
+
+    private static void assertFinite(Quantizer<float[]> quantizer, float[][] vectors) {
+        QuantizedQuery prepared = new QuantizedQuery();
+        quantizer.prepare(vectors[1], prepared);
+        for (int i = 0; i < vectors.length; i++)
+            assertTrue(Float.isFinite(quantizer.distance(prepared, i)));
+    }
+
+    private static QuantizableHandler<float[]>[] handlers() {
+        @SuppressWarnings("unchecked")
+        QuantizableHandler<float[]>[] handlers = (QuantizableHandler<float[]>[]) new QuantizableHandler<?>[]{new FloatL2Handler(),
+                new FloatCosineHandler()};
+        return handlers;
+    }
+
+    public static final class ManhattanHandler extends VecFloatHandler {
+        @Override
+        public float distance(float[] a, float[] b) {
+            float sum = 0;
+            for (int i = 0; i < a.length; i++)
+                sum += Math.abs(a[i] - b[i]);
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.FloatL2Handler;
+import org.apache.lucene.search.TopDocs;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestSegmentFiles {
+    private static final int COUNT = 600;
+    private static final int DIMENSION = 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    //the mapped graph, vectors and external ids hold what the writer had,
+    //deleted ids having no links, zeroed vectors and -1 as external id
+    @Test
+    public void testRoundTripWithDeletedNodes() throws Exception {
+        String dir = folder.newFolder().getPath();
+        FloatL2Handler handler = new FloatL2Handler();
+        float[][] vectors = TestVectors.gaussian(new Random(1), COUNT, DIMENSION);
+        HnswConfiguration configuration = new HnswConfiguration(handler, COUNT);
+        configuration.setM(8);
+        configuration.setEfConstruction(50);
+        configuration.setEnableRemove(true);
+        configuration.setLowMemoryMode(true);
+        HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration, dir);
+        writer.addAll(TestVectors.items(vectors));
+        for (int i = 0; i < COUNT; i += 7) {
+            writer.removeOnExternalID(i + TestVectors.ID_OFFSET);
+            vectors[i] = null;
+        }
+        writer.save();
+
+        LeafSegment<float[]> written = writer.leaves[0];
+        try (HnswIndexSearcher<float[]> searcher = new HnswIndexSearcher<>(dir)) {
+            LeafSegment<float[]> mapped = searcher.leaves[0];
+            SegmentGraph graph = mapped.graph;
+            assertEquals(written.nodeCount, graph.nodeCount);
+            assertEquals(written.entryPoint.internalId, graph.entryId);
+            assertEquals(written.entryPoint.maxLevel(), graph.entryLevel);
+
+            int deleted = 0;
+            for (int id = 0; id < graph.nodeCount; id++) {
+                Node<float[]> node = written.getNode(id).orElse(null);
+                if (node == null) {
+                    deleted++;
+                    assertEquals(-1, mapped.externalIds.get(id));
+                    assertArrayEquals(new float[DIMENSION], mapped.mappedVectors.get(id), 0f);
+                    assertEquals(graph.begin(id, 0), graph.end(id, 0));
+                    continue;
+                }
+                assertEquals(node.externalID(), mapped.externalIds.get(id));
+                assertArrayEquals(node.vector(), mapped.mappedVectors.get(id), 0f);
+                for (int layer = 0; layer <= graph.entryLevel; layer++) {
+                    IntArrayList expected = layer <= node.maxLevel() ? node.outConns[layer] : new IntArrayList();
+                    IntBuffer links = graph.links(layer);
+                    assertEquals(expected.size(), graph.end(id, layer) - graph.begin(id, layer));
+                    for (int i = 0; i < expected.size(); i++)
+                        assertEquals(expected.get(i), links.get(graph.begin(id, layer) + i));
+                }
+            }
+            assertEquals((COUNT + 6) / 7, deleted);
+
+            //deleted items are never returned
+            Random random = new Random(2);
+            for (int q = 0; q < 20; q++) {
+                float[] query = TestVectors.gaussian(random, 1, DIMENSION)[0];
+                TopDocs hits = searcher.searchExact(query, 10);
+                int[] expected = TestVectors.nearest(handler, vectors, query, 10, null);
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(expected[i], hits.scoreDocs[i].doc);
+                    assertNotEquals(0, (hits.scoreDocs[i].doc - TestVectors.ID_OFFSET) % 7);
+                }
+            }
+        }
+    }
+
+    //a segment written by one writer and reopened by another is saved again unchanged
+    @Test
+    public void testReopenedWriterSavesSameSegment() throws Exception {
+        String dir = folder.newFolder().getPath();
+        FloatL2Handler handler = new FloatL2Handler();
+        float[][] vectors = TestVectors.gaussian(new Random(3), COUNT, DIMENSION);
+        HnswConfiguration configuration = new HnswConfiguration(handler, COUNT);
+        configuration.setLowMemoryMode(true);
+        HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration, dir);
+        writer.addAll(TestVectors.items(vectors));
+        writer.save();
+
+        float[] query = vectors[5];
+        TopDocs before;
+        try (HnswIndexSearcher<float[]> searcher = new HnswIndexSearcher<>(dir)) {
+            before = searcher.search(query, 10);
+        }
+        new HnswIndexWriter<float[]>(dir).save();
+        try (HnswIndexSearcher<float[]> searcher = new HnswIndexSearcher<>(dir)) {
+            TopDocs after = searcher.search(query, 10);
+            assertEquals(before.scoreDocs.length, after.scoreDocs.length);
+            for (int i = 0; i < before.scoreDocs.length; i++)
+                assertEquals(before.scoreDocs[i].doc, after.scoreDocs[i].doc);
+            assertEquals(5 + TestVectors.ID_OFFSET, after.scoreDocs[0].doc);
+        }
+    }
+
+    //a searcher translates ids with the leaves' files, without the global
+    //lookup table, and lets go of the mapped files once closed
+    @Test
+    public void testSearcherMapsLeafFilesOnly() throws Exception {
+        String dir = folder.newFolder().getPath();
+        float[][] vectors = TestVectors.gaussian(new Random(4), COUNT, DIMENSION);
+        HnswConfiguration configuration = new HnswConfiguration(new FloatL2Handler(), COUNT);
+        configuration.setLowMemoryMode(true);
+        HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration, dir);
+        writer.addAll(TestVectors.items(vectors));
+        writer.save();
+
+        HnswIndexSearcher<float[]> searcher = new HnswIndexSearcher<>(dir);
+        assertNull(searcher.getLookup());
+        assertEquals(5 + TestVectors.ID_OFFSET, searcher.search(vectors[5], 1).scoreDocs[0].doc);
+        searcher.close();
+        LeafSegment<float[]> leaf = searcher.leaves[0];
+        assertNull(leaf.graph);
+        assertNull(leaf.mappedVectors);
+        assertNull(leaf.externalIds);
+    }
+}
@@ -0,0 +1,40 @@
+package ai.preferred.cerebro.hnsw;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSharedVisitedSet {
+
+    @Test
+    public void testClaimsOnce() throws Exception {
+        int count = 100_000;
+        SharedVisitedSet visited = new SharedVisitedSet(count);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 3; round++) {
+                AtomicInteger claimed = new AtomicInteger();
+                Future<?>[] futures = new Future<?>[4];
+                for (int t = 0; t < futures.length; t++) {
+                    futures[t] = executor.submit(() -> {
+                        for (int id = 0; id < count; id++) {
+                            if (visited.claim(id))
+                                claimed.incrementAndGet();
+                        }
+                    });
+                }
+                for (Future<?> future : futures)
+                    future.get();
+                assertEquals(count, claimed.get());
+                visited.clear();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
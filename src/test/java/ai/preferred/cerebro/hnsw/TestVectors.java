@@ -0,0 +1,66 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * Vectors and brute force results the index tests compare with.
+ * External ids are offset from the positions of the vectors so that
+ * a mixup of internal and external ids shows in the results.
+ */
+final class TestVectors {
+    static final int ID_OFFSET = 1000;
+
+    private TestVectors() {
+    }
+
+    static float[][] gaussian(Random random, int count, int dimension) {
+        float[][] vectors = new float[count][dimension];
+        for (float[] vector : vectors) {
+            for (int i = 0; i < dimension; i++)
+                vector[i] = (float) random.nextGaussian();
+        }
+        return vectors;
+    }
+
+    static List<Item<float[]>> items(float[][] vectors) {
+        List<Item<float[]>> items = new ArrayList<>(vectors.length);
+        for (int i = 0; i < vectors.length; i++)
+            items.add(new Item<>(i + ID_OFFSET, vectors[i]));
+        return items;
+    }
+
+    /**
+     * @return the external ids of the k vectors nearest to the query that pass
+     * the filter, nearest first, skipping null (deleted) vectors
+     */
+    static int[] nearest(VecHandler<float[]> handler, float[][] vectors, float[] query, int k, IntPredicate filter) {
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < vectors.length; i++) {
+            if (vectors[i] != null && (filter == null || filter.test(i + ID_OFFSET)))
+                candidates.add(i);
+        }
+        candidates.sort(Comparator.comparingDouble(i -> handler.distance(query, vectors[i])));
+        return candidates.stream().limit(k).mapToInt(i -> i + ID_OFFSET).toArray();
+    }
+
+    /**
+     * @return fraction of the expected ids found
+     */
+    static double recall(int[] expected, int[] found) {
+        int[] sorted = found.clone();
+        Arrays.sort(sorted);
+        int hits = 0;
+        for (int id : expected) {
+            if (Arrays.binarySearch(sorted, id) >= 0)
+                hits++;
+        }
+        return expected.length == 0 ? 1 : hits / (double) expected.length;
+    }
+}
@@ -0,0 +1,34 @@
+package ai.preferred.cerebro.hnsw;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestVisitedSet {
+
+    @Test
+    public void testClear() {
+        VisitedSet visited = new VisitedSet(100);
+        visited.flipTrue(7);
+        assertTrue(visited.isTrue(7));
+        assertFalse(visited.isTrue(8));
+        visited.clear();
+        assertFalse(visited.isTrue(7));
+    }
+
+    //an id visited before the stamps wrap around must not look visited after
+    @Test
+    public void testEpochWraparound() {
+        VisitedSet visited = new VisitedSet(10);
+        for (int epoch = 0; epoch < 3 * 65536; epoch++) {
+            int id = epoch % 10;
+            assertFalse("id " + id + " after " + epoch + " clears", visited.isTrue(id));
+            visited.flipTrue(id);
+            assertTrue(visited.isTrue(id));
+            visited.clear();
+            for (int i = 0; i < 10; i++)
+                assertFalse(visited.isTrue(i));
+        }
+    }
+}